@@ -0,0 +1,11 @@
+package com.hanhuy.android.bluetooth.keyguard;
+
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * CryptoBenchmark with several callers at once, to show contention on
+ * shared cipher, digest or random state.
+ */
+@Threads(4)
+public class ConcurrentCryptoBenchmark extends CryptoBenchmark {
+}
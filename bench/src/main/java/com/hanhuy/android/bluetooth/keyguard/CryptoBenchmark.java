@@ -0,0 +1,83 @@
+package com.hanhuy.android.bluetooth.keyguard;
+
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The password paths of CryptoUtils with keys already derived, so only the
+ * per-call cost is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CryptoBenchmark {
+    private final static String PASSWORD = "correct horse battery staple";
+    private final static int ITERATIONS = 1000;
+
+    private File dir;
+    private Settings settings;
+    private char[] password;
+    private String encrypted;
+    private String envelope;
+
+    @Setup
+    public void setUp() {
+        password = PASSWORD.toCharArray();
+        encrypted = CryptoUtils.encrypt(PASSWORD);
+        envelope = CryptoUtils.seal(password, ITERATIONS);
+        dir = Files.createTempDir();
+        settings = SettingsBenchmark.settings(dir);
+        settings.set(Settings.PASSWORD, envelope);
+    }
+
+    @TearDown
+    public void tearDown() {
+        SettingsBenchmark.delete(dir);
+    }
+
+    @Benchmark
+    public String encrypt() {
+        return CryptoUtils.encrypt(PASSWORD);
+    }
+
+    @Benchmark
+    public String decrypt() {
+        return CryptoUtils.decrypt(encrypted);
+    }
+
+    @Benchmark
+    public String hmac() {
+        return CryptoUtils.hmac(PASSWORD);
+    }
+
+    @Benchmark
+    public String seal() {
+        return CryptoUtils.seal(password, ITERATIONS);
+    }
+
+    @Benchmark
+    public String unseal() {
+        return CryptoUtils.unseal(envelope);
+    }
+
+    @Benchmark
+    public boolean isPasswordSaved() {
+        return CryptoUtils.isPasswordSaved(settings);
+    }
+}
@@ -0,0 +1,166 @@
+package com.hanhuy.android.bluetooth.keyguard;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads and writes of each kind of setting, on in-memory preferences and
+ * policy files in a temporary directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SettingsBenchmark {
+    private final static String DEVICE = "00:11:22:33:44:55";
+    private final static Set<String> DEVICES = ImmutableSet.of(
+            DEVICE, "00:11:22:33:44:66", "00:11:22:33:44:77");
+
+    private File dir;
+    private Settings settings;
+    private Settings.Setting<Boolean> flag;
+    private Settings.Setting<Boolean> templateFlag;
+    private Settings.Setting<String> scopedString;
+    private boolean toggle;
+    private long counter;
+
+    /**
+     * Settings kept in MemoryPreferences, with policy files in dir
+     */
+    static Settings settings(File dir) {
+        return Settings.create(new MemoryPreferences(),
+                new MemoryPreferences(), new MemoryPreferences(), dir);
+    }
+
+    static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Setup
+    public void setUp() {
+        dir = Files.createTempDir();
+        settings = settings(dir);
+        Settings.Scope scope = Settings.device(DEVICE);
+        flag = scope.requireUnlock;
+        // not set in its scope, resolved from the default template
+        templateFlag = scope.disableKeyguard;
+        scopedString = scope.template;
+        settings.edit()
+                .set(Settings.SHOW_NOTIFICATIONS, false)
+                .set(Settings.LAST_STATE_CHANGE, 1l)
+                .set(Settings.PASSWORD, "password")
+                .set(Settings.BLUETOOTH_DEVICES, DEVICES)
+                .set(flag, true)
+                .set(scopedString, "default")
+                .commit();
+    }
+
+    @TearDown
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Benchmark
+    public Boolean getBoolean() {
+        return settings.get(Settings.SHOW_NOTIFICATIONS);
+    }
+
+    @Benchmark
+    public boolean getBooleanPrimitive() {
+        return settings.getBoolean(Settings.SHOW_NOTIFICATIONS);
+    }
+
+    @Benchmark
+    public Long getLong() {
+        return settings.get(Settings.LAST_STATE_CHANGE);
+    }
+
+    @Benchmark
+    public long getLongPrimitive() {
+        return settings.getLong(Settings.LAST_STATE_CHANGE);
+    }
+
+    @Benchmark
+    public String getString() {
+        return settings.get(Settings.PASSWORD);
+    }
+
+    @Benchmark
+    public Set<String> getStringSet() {
+        return settings.get(Settings.BLUETOOTH_DEVICES);
+    }
+
+    @Benchmark
+    public String getScopedString() {
+        return settings.get(scopedString);
+    }
+
+    @Benchmark
+    public boolean getFlag() {
+        return settings.getBoolean(flag);
+    }
+
+    @Benchmark
+    public boolean getTemplateFlag() {
+        return settings.getBoolean(templateFlag);
+    }
+
+    @Benchmark
+    public void setBoolean() {
+        toggle = !toggle;
+        settings.set(Settings.SHOW_NOTIFICATIONS, toggle);
+    }
+
+    @Benchmark
+    public void setLong() {
+        settings.set(Settings.LAST_STATE_CHANGE, ++counter);
+    }
+
+    @Benchmark
+    public void setString() {
+        toggle = !toggle;
+        settings.set(Settings.PASSWORD, toggle ? "password" : "secret");
+    }
+
+    @Benchmark
+    public void setStringSet() {
+        toggle = !toggle;
+        settings.set(Settings.BLUETOOTH_DEVICES, toggle ?
+                DEVICES : ImmutableSet.of(DEVICE));
+    }
+
+    @Benchmark
+    public void setScopedString() {
+        toggle = !toggle;
+        settings.set(scopedString, toggle ? "default" : "home");
+    }
+
+    @Benchmark
+    public void setFlag() {
+        toggle = !toggle;
+        settings.set(flag, toggle);
+    }
+}
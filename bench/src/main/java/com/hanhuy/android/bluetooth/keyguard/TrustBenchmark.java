@@ -0,0 +1,97 @@
+package com.hanhuy.android.bluetooth.keyguard;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lock state evaluation with 50 selected devices and networks, of which
+ * two devices and one network are present.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TrustBenchmark {
+    private final static int SCOPES = 50;
+
+    private File dir;
+    private Settings settings;
+    private TrustState trust;
+    private Set<String> connected;
+    private Set<String> reconnected;
+    private boolean toggle;
+
+    @Setup
+    public void setUp() {
+        dir = Files.createTempDir();
+        settings = SettingsBenchmark.settings(dir);
+        Set<String> devices = Sets.newHashSet();
+        Set<String> networks = Sets.newHashSet();
+        Settings.Transaction t = settings.edit();
+        for (int i = 0; i < SCOPES; i++) {
+            String addr = String.format("00:11:22:33:44:%02X", i);
+            devices.add(addr);
+            networks.add("\"network" + i + "\"");
+            t.set(Settings.device(addr, Settings.REQUIRE_UNLOCK), i % 2 == 0);
+        }
+        connected = ImmutableSet.of("00:11:22:33:44:00", "00:11:22:33:44:01");
+        reconnected = ImmutableSet.of("00:11:22:33:44:01");
+        t.set(Settings.BT_CLEAR_KEYGUARD, true)
+                .set(Settings.WIFI_CLEAR_KEYGUARD, true)
+                .set(Settings.BLUETOOTH_DEVICES, devices)
+                .set(Settings.WIFI_NETWORKS, networks)
+                .set(Settings.BLUETOOTH_CONNECTIONS, connected)
+                .commit();
+        trust = new TrustState(settings);
+    }
+
+    @TearDown
+    public void tearDown() {
+        SettingsBenchmark.delete(dir);
+    }
+
+    @Benchmark
+    public LockMediator.Status unchanged() {
+        return trust.evaluate("network1");
+    }
+
+    @Benchmark
+    public LockMediator.Status connectionChanged() {
+        toggle = !toggle;
+        settings.set(Settings.BLUETOOTH_CONNECTIONS,
+                toggle ? reconnected : connected);
+        return trust.evaluate("network1");
+    }
+
+    @Benchmark
+    public LockMediator.Status networkChanged() {
+        toggle = !toggle;
+        return trust.evaluate(toggle ? "network1" : "network2");
+    }
+
+    @Benchmark
+    public LockMediator.Status configurationChanged() {
+        toggle = !toggle;
+        settings.set(Settings.device("00:11:22:33:44:00",
+                Settings.DISABLE_KEYGUARD), toggle);
+        return trust.evaluate("network1");
+    }
+}
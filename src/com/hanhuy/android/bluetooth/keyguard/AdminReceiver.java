@@ -15,7 +15,8 @@ public class AdminReceiver extends DeviceAdminReceiver{
     @Override
     public void onEnabled(Context context, Intent intent) {
         Log.v(TAG, "Enabled");
-        LockMediator.getInstance(context).notifyStateChanged();
+        SystemStateCache.getInstance(context).setAdminActive(true);
+        LockMediator.getInstance(context).notifyStateChanged(this);
     }
 
     @Override
@@ -26,7 +27,8 @@ public class AdminReceiver extends DeviceAdminReceiver{
     @Override
     public void onDisabled(Context context, Intent intent) {
         Log.v(TAG, "Disabled");
-        LockMediator.getInstance(context).notifyStateChanged();
+        SystemStateCache.getInstance(context).setAdminActive(false);
+        LockMediator.getInstance(context).notifyStateChanged(this);
         Settings s = Settings.getInstance(context);
         s.set(Settings.LOCK_DISABLED, false);
     }
@@ -50,14 +52,16 @@ public class AdminReceiver extends DeviceAdminReceiver{
                     .setTicker(
                             c.getString(R.string.notif_passwd_changed_text))
                     .build();
-            s.set(Settings.PASSWORD, null);
-            s.set(Settings.PASSWORD_HASH, null);
-            s.set(Settings.LOCK_DISABLED, false);
+            s.edit()
+                    .set(Settings.PASSWORD, null)
+                    .set(Settings.PASSWORD_HASH, null)
+                    .set(Settings.LOCK_DISABLED, false)
+                    .commit();
             NotificationManager nm =
                     (NotificationManager) c.getSystemService(
                             Context.NOTIFICATION_SERVICE);
             nm.notify(LockMediator.NOTIFICATION_RESET, n);
-            lm.notifyStateChanged();
+            lm.notifyStateChanged(this);
         }
     }
 
@@ -0,0 +1,57 @@
+package com.hanhuy.android.bluetooth.keyguard;
+
+/**
+ * Upper case hex, encoded and decoded directly between caller supplied
+ * buffers so that nothing is allocated per byte or per call.
+ */
+class Base16 {
+    private final static char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private Base16() { }
+
+    /**
+     * Write 2 * len chars to out, starting at outOff
+     */
+    static void encode(byte[] in, int off, int len, char[] out, int outOff) {
+        for (int i = 0; i < len; i++) {
+            int b = in[off + i] & 0xff;
+            out[outOff++] = DIGITS[b >> 4];
+            out[outOff++] = DIGITS[b & 0xf];
+        }
+    }
+
+    static String encode(byte[] in, int off, int len) {
+        char[] out = new char[2 * len];
+        encode(in, off, len, out, 0);
+        return new String(out);
+    }
+
+    /**
+     * Decode len chars of in, starting at off, into out at outOff.
+     * Either case is accepted.
+     * @return the number of bytes written, -1 if the input is not hex
+     */
+    static int decode(CharSequence in, int off, int len,
+                      byte[] out, int outOff) {
+        if (len % 2 != 0)
+            return -1;
+        for (int i = 0; i < len; i += 2) {
+            int hi = digit(in.charAt(off + i));
+            int lo = digit(in.charAt(off + i + 1));
+            if (hi == -1 || lo == -1)
+                return -1;
+            out[outOff++] = (byte) (hi << 4 | lo);
+        }
+        return len / 2;
+    }
+
+    private static int digit(char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        return -1;
+    }
+}
@@ -5,12 +5,10 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
+import com.google.common.base.Function;
 import com.google.common.collect.Sets;
 
-import java.util.HashSet;
-import java.util.List;
+import java.util.Set;
 
 /**
  * Store state of connected devices.
@@ -21,33 +19,43 @@ public class BluetoothAclBroadcastReceiver extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context ctx, Intent intent) {
+        // overlaps key derivation with the settings writes below
+        CryptoUtils.warmUp(ctx);
         String action = intent.getAction();
         Settings s = Settings.getInstance(ctx);
         BluetoothDevice device = intent.getParcelableExtra(
                 BluetoothDevice.EXTRA_DEVICE);
-        String address = device.getAddress();
-
-        List<String> connectedDevices = s.get(Settings.BLUETOOTH_CONNECTIONS);
-
-        HashSet<String> connected = Sets.newHashSet(connectedDevices);
+        final String address = device.getAddress();
 
+        final boolean connect;
         if (BluetoothDevice.ACTION_ACL_CONNECTED.equals(action)) {
-            connected.add(address);
+            connect = true;
         } else if (BluetoothDevice.ACTION_ACL_DISCONNECTED.equals(action)) {
-            connected.remove(address);
+            connect = false;
         } else {
             return;
         }
 
-        if (!Iterables.elementsEqual(connectedDevices, connected)) {
-            s.set(Settings.BLUETOOTH_CONNECTIONS,
-                    Lists.newArrayList(connected));
+        final boolean[] changed = { false };
+        Set<String> connected = s.update(Settings.BLUETOOTH_CONNECTIONS,
+                new Function<Set<String>, Set<String>>() {
+                    @Override
+                    public Set<String> apply(Set<String> devices) {
+                        changed[0] = connect != devices.contains(address);
+                        if (!changed[0])
+                            return devices;
+                        Set<String> next = Sets.newLinkedHashSet(devices);
+                        if (connect)
+                            next.add(address);
+                        else
+                            next.remove(address);
+                        return next;
+                    }
+                });
+
+        if (changed[0]) {
             Log.v(TAG, "connected devices: " + connected);
-            LockMediator.getInstance(ctx).notifyStateChanged();
+            LockMediator.getInstance(ctx).notifyStateChanged(this);
         }
     }
-
-    private static boolean eq(Object o1, Object o2) {
-        return o1 == null ? o2 == null : o1.equals(o2);
-    }
 }
@@ -6,6 +6,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.res.ColorStateList;
 import android.os.Bundle;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.app.Fragment;
@@ -15,12 +16,10 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.*;
 import com.google.common.base.Function;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 import java.util.ArrayList;
-import java.util.List;
 import java.util.Set;
 
 import static com.hanhuy.android.bluetooth.keyguard.Settings.device;
@@ -38,11 +37,14 @@ public class BluetoothFragment extends Fragment {
     private View noAdapterContainer;
     private View btDisabledContainer;
     private ArrayAdapter<BluetoothDevice> adapter;
+    private ColorStateList textColors;
+    private ScopeIcons icons;
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup c, Bundle b) {
         View v = inflater.inflate(R.layout.fragment_bluetooth, c, false);
         settings = Settings.getInstance(getActivity());
+        icons = new ScopeIcons(settings);
         listView = (ListView) v.findViewById(R.id.paired_devices_list);
         disableKg = (CheckBox) v.findViewById(R.id.enable_clear_keyguard);
         disableKg.setOnCheckedChangeListener(
@@ -117,6 +119,16 @@ public class BluetoothFragment extends Fragment {
         }
     };
 
+    // only the colors of the rows depend on connections
+    private Settings.OnChangeListener connectionsListener =
+            new Settings.OnChangeListener() {
+                @Override
+                public void onSettingsChanged(Set<String> keys) {
+                    if (adapter != null)
+                        adapter.notifyDataSetChanged();
+                }
+            };
+
     private void refreshDevices() {
         BluetoothAdapter bt = BluetoothAdapter.getDefaultAdapter();
         Set<BluetoothDevice> devices;
@@ -146,9 +158,6 @@ public class BluetoothFragment extends Fragment {
             btDisabledContainer.setVisibility(View.GONE);
             noDevicesContainer.setVisibility(View.GONE);
             devicesContainer.setVisibility(View.VISIBLE);
-            List<String> connectedList = settings.get(
-                    Settings.BLUETOOTH_CONNECTIONS);
-            final Set<String> connected = Sets.newHashSet(connectedList);
             adapter = new ArrayAdapter<BluetoothDevice>(getActivity(),
                     android.R.layout.simple_list_item_multiple_choice,
                     pairedDevices) {
@@ -158,34 +167,27 @@ public class BluetoothFragment extends Fragment {
                     convertView = super.getView(
                             position, convertView, parent);
                     TextView v = (TextView) convertView;
-                    int drawableLeft = 0;
                     String addr = pairedDevices[position].getAddress();
-                    boolean disableKG = settings.get(
-                            device(addr, Settings.DISABLE_KEYGUARD));
-                    boolean requireUnlock = settings.get(
-                            device(addr, Settings.REQUIRE_UNLOCK));
-                    if (disableKG && requireUnlock) {
-                        drawableLeft = R.drawable.lock_and_keyguard;
-                    } else if (disableKG) {
-                        drawableLeft = R.drawable.ic_display;
-                    } else if (requireUnlock) {
-                        drawableLeft = R.drawable.ic_lock_inverse;
-                    }
                     v.setCompoundDrawablesWithIntrinsicBounds(
-                            drawableLeft, 0, 0, 0);
+                            icons.get(device(addr)), 0, 0, 0);
                     v.setText(
                             pairedDevices[position].getName());
-                    if (connected.contains(addr)) {
+                    if (textColors == null)
+                        textColors = v.getTextColors();
+                    if (settings.get(Settings.BLUETOOTH_CONNECTIONS)
+                            .contains(addr)) {
                         v.setTextColor(0xff00aa00);
+                    } else {
+                        // rows are redrawn in place when connections change
+                        v.setTextColor(textColors);
                     }
                     return convertView;
                 }
             };
             listView.setAdapter(adapter);
-            List<String> selected = settings.get(Settings.BLUETOOTH_DEVICES);
-            Set<String> selectedList = Sets.newHashSet(selected);
+            Set<String> selected = settings.get(Settings.BLUETOOTH_DEVICES);
             for (int i = 0, j = devices.size(); i < j; i++) {
-                if (selectedList.contains(adapter.getItem(i).getAddress())) {
+                if (selected.contains(adapter.getItem(i).getAddress())) {
                     listView.setItemChecked(i, true);
                 }
             }
@@ -197,9 +199,9 @@ public class BluetoothFragment extends Fragment {
         super.onResume();
         IntentFilter filter = new IntentFilter();
         filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
-        filter.addAction(BluetoothDevice.ACTION_ACL_CONNECTED);
-        filter.addAction(BluetoothDevice.ACTION_ACL_DISCONNECTED);
         getActivity().registerReceiver(bluetoothStateReceiver, filter);
+        settings.registerListener(
+                Settings.BLUETOOTH_CONNECTIONS, connectionsListener);
         refreshDevices();
     }
 
@@ -211,28 +213,20 @@ public class BluetoothFragment extends Fragment {
         for (int i = 0; i < length; i++) {
             if (ary.get(i)) {
                 devices.add((BluetoothDevice) listView.getItemAtPosition(i));
-            } else {
-                Settings.Setting<Boolean> disablekg = device(
-                        adapter.getItem(i).getAddress(),
-                        Settings.DISABLE_KEYGUARD);
-                boolean wasDisabled = settings.get(disablekg);
-                settings.set(disablekg, false);
-                if (wasDisabled)
-                    adapter.notifyDataSetChanged();
             }
         }
 
-        List<String> pref = Lists.transform(devices,
+        Set<String> pref = Sets.newHashSet(Lists.transform(devices,
                 new Function<BluetoothDevice,String>() {
                     @Override
                     public String apply(BluetoothDevice d) {
                         return d.getAddress();
                     }
-                });
+                }));
 
-        List<String> oldPref = settings.get(Settings.BLUETOOTH_DEVICES);
+        Set<String> oldPref = settings.get(Settings.BLUETOOTH_DEVICES);
 
-        if (!Iterables.elementsEqual(pref, oldPref)) {
+        if (!pref.equals(oldPref)) {
             settings.set(Settings.BLUETOOTH_DEVICES, pref);
         }
         LockMediator.getInstance(getActivity()).notifyStateChanged();
@@ -242,5 +236,6 @@ public class BluetoothFragment extends Fragment {
     public void onPause() {
         super.onPause();
         getActivity().unregisterReceiver(bluetoothStateReceiver);
+        settings.unregisterListener(connectionsListener);
     }
 }
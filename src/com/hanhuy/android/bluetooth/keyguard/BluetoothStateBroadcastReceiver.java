@@ -10,9 +10,11 @@ public class BluetoothStateBroadcastReceiver extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context ctx, Intent intent) {
+        // overlaps key derivation with the settings writes below
+        CryptoUtils.warmUp(ctx);
         Settings s = Settings.getInstance(ctx);
         Log.i(TAG, "clearing connected device state");
         s.set(Settings.BLUETOOTH_CONNECTIONS, null);
-        LockMediator.getInstance(ctx).notifyStateChanged();
+        LockMediator.getInstance(ctx).notifyStateChanged(this);
     }
 }
@@ -0,0 +1,156 @@
+package com.hanhuy.android.bluetooth.keyguard;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The saved password as seen by the UI. Every operation may wait on key
+ * derivation or on the device policy service, so it runs on a background
+ * thread and its result is delivered to a Callback on the main thread.
+ * Operations run one at a time, in the order they were requested.
+ */
+public class CredentialStore {
+    private final static String TAG = "CredentialStore";
+    private static CredentialStore instance;
+    private final Context ctx;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat(TAG)
+                    .setDaemon(true)
+                    .build());
+
+    public interface Callback<T> {
+        void onResult(T result);
+
+        /**
+         * The operation failed, nothing was changed
+         */
+        void onError(Exception e);
+    }
+
+    public static class State {
+        public final boolean isSaved;
+        public final boolean isPIN;
+        private State(boolean isSaved, boolean isPIN) {
+            this.isSaved = isSaved;
+            this.isPIN = isPIN;
+        }
+    }
+
+    private CredentialStore(Context c) {
+        ctx = c;
+    }
+
+    public static CredentialStore getInstance(Context c) {
+        if (instance == null)
+            instance = new CredentialStore(c.getApplicationContext());
+        return instance;
+    }
+
+    /**
+     * Whether a password is saved, and if it is a PIN
+     */
+    public void getState(Callback<State> callback) {
+        submit(new Callable<State>() {
+            @Override
+            public State call() {
+                return new State(CryptoUtils.isPasswordSaved(ctx),
+                        CryptoUtils.isPIN(ctx));
+            }
+        }, callback);
+    }
+
+    /**
+     * Check entered against the saved password. entered is copied before
+     * returning, so it may be cleared immediately.
+     */
+    public void verify(CharSequence entered, Callback<Boolean> callback) {
+        final char[] password = CryptoUtils.toChars(entered);
+        submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                try {
+                    return CryptoUtils.verifyPassword(
+                            ctx, CharBuffer.wrap(password));
+                } finally {
+                    Arrays.fill(password, '\0');
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Make entered the device password, then save it. Nothing is saved
+     * if the device password could not be set. entered is copied before
+     * returning, so the caller keeps and wipes its own array.
+     */
+    public void save(char[] entered, final Callback<Void> callback) {
+        final char[] password = entered.clone();
+        submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                try {
+                    Settings s = Settings.getInstance(ctx);
+                    LockMediator kgm = LockMediator.getInstance(ctx);
+                    String envelope = CryptoUtils.seal(ctx, password);
+                    // marks the coming password change as our own
+                    kgm.updatePasswordSetTime();
+                    DevicePolicyManager dpm = (DevicePolicyManager)
+                            ctx.getSystemService(
+                                    Context.DEVICE_POLICY_SERVICE);
+                    if (!dpm.resetPassword(new String(password), 0))
+                        throw new IllegalStateException(
+                                "Password rejected by device policy");
+                    s.edit()
+                            .set(Settings.PASSWORD, envelope)
+                            .remove(Settings.PASSWORD_HASH)
+                            .set(Settings.LOCK_DISABLED, false)
+                            .commit();
+                    kgm.notifyStateChanged();
+                } finally {
+                    Arrays.fill(password, '\0');
+                }
+                return null;
+            }
+        }, callback);
+    }
+
+    private <T> void submit(final Callable<T> task,
+                            final Callback<T> callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final T result;
+                try {
+                    result = task.call();
+                } catch (final Exception e) {
+                    Log.e(TAG, "Credential operation failed", e);
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onError(e);
+                        }
+                    });
+                    return;
+                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResult(result);
+                    }
+                });
+            }
+        });
+    }
+}
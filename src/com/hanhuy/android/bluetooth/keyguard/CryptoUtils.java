@@ -2,140 +2,669 @@ package com.hanhuy.android.bluetooth.keyguard;
 
 import android.content.Context;
 import android.util.Log;
-import com.google.common.io.BaseEncoding;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.security.AlgorithmParameters;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CryptoUtils {
     private final static String TAG = "CryptoUtils";
     private final static String OBFUSCATION_KEY =
             "com.hanhuy.android.bluetooth.keyguard.OBFUS_KEY";
     private final static String SALT = "0123456789ABCDEF";
-    private final static BaseEncoding BASE16 = BaseEncoding.base16();
-    private final static SecretKey KEY;
     private final static String ALG = "AES";
     private final static String CIPHER_ALG = ALG + "/CBC/PKCS5Padding";
-    private final static MessageDigest SHA1;
+    private final static AtomicBoolean warmingUp = new AtomicBoolean();
+    private final static String MAC_ALG = "HmacSHA256";
+    /**
+     * The iteration count of the old format and version 2 envelopes, and
+     * the least calibrate() will choose
+     */
+    private final static int DEFAULT_ITERATIONS = 1000;
+    private final static int MAX_ITERATIONS = 1000000;
+    /**
+     * How long deriving a key should take on this device
+     */
+    private final static long TARGET_DERIVATION_NANOS = 100 * 1000 * 1000;
 
-    static {
+    /**
+     * The cipher key and, derived from it so that the two are never the
+     * same, the MAC key
+     */
+    private static class Keys {
+        final SecretKey cipher;
+        final SecretKey mac;
+        Keys(SecretKey cipher, SecretKey mac) {
+            this.cipher = cipher;
+            this.mac = mac;
+        }
+    }
+
+    /**
+     * Key stretching is slow, so keys are not derived when the class loads
+     * but the first time they are needed, or earlier by warmUp(). There is
+     * one set per iteration count in use, rarely more than two.
+     */
+    private final static ConcurrentMap<Integer,FutureTask<Keys>> KEYS =
+            Maps.newConcurrentMap();
+
+    /**
+     * These are not thread safe and slow to look up, each thread keeps its
+     * own instead of creating one per call or sharing one behind a lock.
+     */
+    private final static ThreadLocal<Cipher> CIPHER =
+            new ThreadLocal<Cipher>() {
+                @Override
+                protected Cipher initialValue() {
+                    try {
+                        return Cipher.getInstance(CIPHER_ALG);
+                    } catch (GeneralSecurityException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+    private final static ThreadLocal<MessageDigest> SHA1 =
+            new ThreadLocal<MessageDigest>() {
+                @Override
+                protected MessageDigest initialValue() {
+                    try {
+                        return MessageDigest.getInstance("SHA1");
+                    } catch (GeneralSecurityException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+    private final static ThreadLocal<Mac> MAC = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance(MAC_ALG);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+    private final static ThreadLocal<SecureRandom> RANDOM =
+            new ThreadLocal<SecureRandom>() {
+                @Override
+                protected SecureRandom initialValue() {
+                    return new SecureRandom();
+                }
+            };
+
+    /**
+     * Start deriving keys in the background, so that they are ready by the
+     * time a password has to be encrypted or decrypted, and calibrate the
+     * iteration count if that has not been done yet. A password saved in
+     * the old format is stored again as an envelope here, reads only
+     * report it. Safe to call repeatedly, only the first call does
+     * anything.
+     */
+    public static void warmUp(Context c) {
+        final Settings s = Settings.getInstance(c);
+        if (!warmingUp.getAndSet(true)) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int iterations = iterations(s);
+                    upgrade(s);
+                    String saved = s.get(Settings.PASSWORD);
+                    keys(saved == null ? iterations : iterationsOf(saved));
+                }
+            }, "CryptoUtils.warmUp");
+            t.setPriority(Thread.MIN_PRIORITY);
+            t.start();
+        }
+    }
+
+    private static Keys keys(final int iterations) {
+        FutureTask<Keys> task = KEYS.get(iterations);
+        if (task == null) {
+            FutureTask<Keys> t = new FutureTask<Keys>(new Callable<Keys>() {
+                @Override
+                public Keys call() throws Exception {
+                    return derive(iterations);
+                }
+            });
+            task = KEYS.putIfAbsent(iterations, t);
+            if (task == null)
+                task = t;
+        }
+        // derives the keys on this thread if nothing has started to yet,
+        // otherwise waits for them
+        task.run();
         try {
-            SecretKeyFactory fac = SecretKeyFactory.getInstance(
-                    "PBKDF2WithHmacSHA1");
-            PBEKeySpec spec = new PBEKeySpec(OBFUSCATION_KEY.toCharArray(),
-                    SALT.getBytes("utf-8"), 1000, 128);
-            SecretKey k = fac.generateSecret(spec);
-            KEY = new SecretKeySpec(k.getEncoded(), ALG);
-            SHA1 = MessageDigest.getInstance("SHA1");
-        } catch (GeneralSecurityException e) {
-            throw new IllegalStateException(e);
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+            return Uninterruptibles.getUninterruptibly(task);
+        } catch (ExecutionException e) {
+            // let the next caller try again rather than fail forever
+            KEYS.remove(iterations, task);
+            throw new IllegalStateException(e.getCause());
         }
+    }
 
+    private static byte[] stretch(int iterations)
+            throws GeneralSecurityException {
+        SecretKeyFactory fac = SecretKeyFactory.getInstance(
+                "PBKDF2WithHmacSHA1");
+        PBEKeySpec spec = new PBEKeySpec(OBFUSCATION_KEY.toCharArray(),
+                SALT.getBytes(Charsets.UTF_8), iterations, 128);
+        return fac.generateSecret(spec).getEncoded();
     }
 
-    public static synchronized String hmac(String input) {
+    private static Keys derive(int iterations)
+            throws GeneralSecurityException {
+        byte[] k = stretch(iterations);
+        Mac mac = Mac.getInstance(MAC_ALG);
+        mac.init(new SecretKeySpec(k, MAC_ALG));
+        return new Keys(new SecretKeySpec(k, ALG), new SecretKeySpec(
+                mac.doFinal("mac".getBytes(Charsets.UTF_8)), MAC_ALG));
+    }
+
+    /**
+     * Time derivations with the default iteration count and scale it so
+     * that a derivation takes about TARGET_DERIVATION_NANOS here
+     */
+    @VisibleForTesting
+    static int calibrate() {
         try {
-            if (input == null) return null;
-            byte[] digest = SHA1.digest(input.getBytes("utf-8"));
-            return BASE16.encode(digest);
-        } catch (UnsupportedEncodingException e) {
+            long elapsed = Long.MAX_VALUE;
+            // the best of a few, the first is slowed down by class loading
+            for (int i = 0; i < 3; i++) {
+                long start = System.nanoTime();
+                stretch(DEFAULT_ITERATIONS);
+                elapsed = Math.min(elapsed, System.nanoTime() - start);
+            }
+            long n = DEFAULT_ITERATIONS * TARGET_DERIVATION_NANOS /
+                    Math.max(1, elapsed);
+            n = n / DEFAULT_ITERATIONS * DEFAULT_ITERATIONS;
+            return (int) Math.min(MAX_ITERATIONS,
+                    Math.max(DEFAULT_ITERATIONS, n));
+        } catch (GeneralSecurityException e) {
             throw new IllegalStateException(e);
         }
     }
 
+    /**
+     * The iteration count for new envelopes, calibrated once per device
+     */
+    private static int iterations(Settings s) {
+        long n = s.getLong(Settings.KDF_ITERATIONS);
+        if (n == 0) {
+            n = calibrate();
+            Log.v(TAG, "Calibrated key derivation: " + n + " iterations");
+            s.set(Settings.KDF_ITERATIONS, n);
+        }
+        return (int) n;
+    }
+
+    /**
+     * Per-thread scratch space, grown as needed. Plaintext is wiped from
+     * it after every use.
+     */
+    private static class Buffers {
+        byte[] envelope = new byte[256];
+        byte[] plain = new byte[128];
+        final CharsetEncoder encoder = Charsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final CharsetDecoder decoder = Charsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        byte[] envelope(int length) {
+            if (envelope.length < length)
+                envelope = new byte[length];
+            return envelope;
+        }
+
+        byte[] plain(int length) {
+            if (plain.length < length) {
+                Arrays.fill(plain, (byte) 0);
+                plain = new byte[length];
+            }
+            return plain;
+        }
+
+        /**
+         * Encode chars as UTF-8 into plain()
+         * @return the number of bytes
+         */
+        int encode(char[] chars) {
+            byte[] out = plain((int) Math.ceil(
+                    chars.length * encoder.maxBytesPerChar()));
+            ByteBuffer bytes = ByteBuffer.wrap(out);
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(chars), bytes, true);
+            encoder.flush(bytes);
+            return bytes.position();
+        }
+
+        /**
+         * Decode length bytes of plain() as UTF-8
+         */
+        char[] decode(int length) {
+            char[] out = new char[length];
+            CharBuffer chars = CharBuffer.wrap(out);
+            decoder.reset();
+            decoder.decode(ByteBuffer.wrap(plain, 0, length), chars, true);
+            decoder.flush(chars);
+            if (chars.position() == out.length)
+                return out;
+            char[] exact = Arrays.copyOf(out, chars.position());
+            Arrays.fill(out, '\0');
+            return exact;
+        }
+    }
+
+    private final static ThreadLocal<Buffers> BUFFERS =
+            new ThreadLocal<Buffers>() {
+                @Override
+                protected Buffers initialValue() {
+                    return new Buffers();
+                }
+            };
+
+    public static String hmac(String input) {
+        if (input == null) return null;
+        byte[] digest = SHA1.get().digest(input.getBytes(Charsets.UTF_8));
+        return Base16.encode(digest, 0, digest.length);
+    }
+
     public static String encrypt(String input) {
         try {
-            Cipher c = Cipher.getInstance(CIPHER_ALG);
-            SecureRandom r = new SecureRandom();
+            Cipher c = CIPHER.get();
+            SecureRandom r = RANDOM.get();
             byte[] iv = new byte[16];
             r.nextBytes(iv);
             IvParameterSpec ivspec = new IvParameterSpec(iv);
-            c.init(Cipher.ENCRYPT_MODE, KEY, ivspec, r);
-            return BASE16.encode(iv) + ":" +
-                    BASE16.encode(c.doFinal(input.getBytes("utf-8")));
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+            c.init(Cipher.ENCRYPT_MODE,
+                    keys(DEFAULT_ITERATIONS).cipher, ivspec, r);
+            byte[] encrypted = c.doFinal(input.getBytes(Charsets.UTF_8));
+            return Base16.encode(iv, 0, iv.length) + ":" +
+                    Base16.encode(encrypted, 0, encrypted.length);
         } catch (GeneralSecurityException e) {
             throw new IllegalStateException(e);
         }
     }
 
+    /**
+     * Decrypt the old iv:ciphertext format
+     */
     public static String decrypt(String input) {
+        int colon = input.indexOf(':');
+        if (colon == -1)
+            return null;
+        Buffers buffers = BUFFERS.get();
+        byte[] in = buffers.envelope(input.length() / 2);
+        int ivLength = Base16.decode(input, 0, colon, in, 0);
+        int length = ivLength == -1 ? -1 : Base16.decode(input, colon + 1,
+                input.length() - colon - 1, in, ivLength);
+        if (length == -1)
+            return null;
+        byte[] plain = buffers.plain(length);
         try {
-            String[] inp = input.split(":");
-            if (inp.length < 2)
-                return null;
-
-            byte[] params = BASE16.decode(inp[0]);
-            byte[] encrypted = BASE16.decode(inp[1]);
-            IvParameterSpec ivspec = new IvParameterSpec(params);
-            Cipher c = Cipher.getInstance(CIPHER_ALG);
-            c.init(Cipher.DECRYPT_MODE, KEY, ivspec);
-            return new String(c.doFinal(encrypted));
+            Cipher c = CIPHER.get();
+            c.init(Cipher.DECRYPT_MODE, keys(DEFAULT_ITERATIONS).cipher,
+                    new IvParameterSpec(in, 0, ivLength));
+            int n = c.doFinal(in, ivLength, length, plain, 0);
+            return new String(plain, 0, n, Charsets.UTF_8);
         } catch (GeneralSecurityException e) {
             Log.e(TAG, "Failed to decrypt", e);
             return null;
+        } finally {
+            Arrays.fill(plain, 0, length, (byte) 0);
         }
     }
 
-    public static boolean isPIN(Context c) {
-        boolean isPIN = false;
-        Settings s = Settings.getInstance(c);
-        String saved = s.get(Settings.PASSWORD);
+    private final static byte ENVELOPE_V2 = 2;
+    private final static byte ENVELOPE_VERSION = 3;
+    private final static byte KIND_PASSWORD = 0;
+    private final static byte KIND_PIN = 1;
+    private final static int V2_HEADER_LENGTH = 2;
+    private final static int HEADER_LENGTH = 6;
+    private final static int IV_LENGTH = 16;
+    private final static int MAC_LENGTH = 32;
+
+    /**
+     * Encrypt password into an envelope that carries its own
+     * authentication and says whether it holds a PIN, hex encoded:
+     * <pre>
+     * version(1) kind(1) iterations(4) iv(16) ciphertext mac(32)
+     * </pre>
+     * AES-CBC, then HMAC-SHA256 over everything before the mac. GCM would
+     * do both in one, but is not available on every supported release.
+     * Version 2 is the same without iterations, which were always 1000.
+     * The caller may wipe password afterwards.
+     */
+    public static String seal(Context c, char[] password) {
+        return seal(password, iterations(Settings.getInstance(c)));
+    }
+
+    @VisibleForTesting
+    static String seal(char[] password, int iterations) {
+        Buffers buffers = BUFFERS.get();
+        int length = buffers.encode(password);
+        byte[] plain = buffers.plain;
         try {
-            if (saved != null) {
-                String pw = decrypt(saved);
-                if (pw != null) {
-                    Integer.parseInt(decrypt(saved));
-                    isPIN = true;
-                }
-            }
-        } catch (NumberFormatException e) {  } // ignore
+            Keys keys = keys(iterations);
+            Cipher c = CIPHER.get();
+            byte[] iv = new byte[IV_LENGTH];
+            RANDOM.get().nextBytes(iv);
+            c.init(Cipher.ENCRYPT_MODE, keys.cipher, new IvParameterSpec(iv));
+            byte[] out = buffers.envelope(HEADER_LENGTH + IV_LENGTH +
+                    c.getOutputSize(length) + MAC_LENGTH);
+            ByteBuffer header = ByteBuffer.wrap(out);
+            header.put(ENVELOPE_VERSION);
+            header.put(isNumeric(password) ? KIND_PIN : KIND_PASSWORD);
+            header.putInt(iterations);
+            header.put(iv);
+            int n = HEADER_LENGTH + IV_LENGTH + c.doFinal(
+                    plain, 0, length, out, HEADER_LENGTH + IV_LENGTH);
+            Mac mac = MAC.get();
+            mac.init(keys.mac);
+            mac.update(out, 0, n);
+            mac.doFinal(out, n);
+            return Base16.encode(out, 0, n + MAC_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            Arrays.fill(plain, 0, length, (byte) 0);
+        }
+    }
 
-        return isPIN;
+    /**
+     * @return the password sealed in envelope, null if it is not an
+     * envelope or has been tampered with
+     */
+    @VisibleForTesting
+    static String unseal(String envelope) {
+        char[] password = open(envelope);
+        if (password == null)
+            return null;
+        String unsealed = new String(password);
+        Arrays.fill(password, '\0');
+        return unsealed;
     }
 
-    public static boolean verifyPassword(Context c, String pass) {
-        // have to decrypt saved password: encrypted is different each time
-        Settings s = Settings.getInstance(c);
-        String saved = s.get(Settings.PASSWORD);
-        String decrypted = saved == null ? null : decrypt(saved);
-        return decrypted == null || decrypted.equals(pass);
+    /**
+     * @return the iteration count the envelope in was encrypted with, 0 if
+     * it is not valid. Read before the envelope can be verified, so it is
+     * bounded to keep a corrupt value from stalling derivation.
+     */
+    private static int iterationsOf(byte[] in, int length) {
+        if (length > 0 && in[0] == ENVELOPE_V2)
+            return DEFAULT_ITERATIONS;
+        if (length < HEADER_LENGTH || in[0] != ENVELOPE_VERSION)
+            return 0;
+        int n = ByteBuffer.wrap(in, 2, 4).getInt();
+        return n < DEFAULT_ITERATIONS || n > MAX_ITERATIONS ? 0 : n;
     }
 
-    public static boolean isPasswordSaved(Context c) {
-        Settings s = Settings.getInstance(c);
-        boolean isSaved = false;
+    private static int iterationsOf(String saved) {
+        if (isEnvelope(saved) && saved.length() >= 2 * HEADER_LENGTH) {
+            byte[] in = BUFFERS.get().envelope(HEADER_LENGTH);
+            int length = Base16.decode(saved, 0, 2 * HEADER_LENGTH, in, 0);
+            int n = iterationsOf(in, length);
+            if (n != 0)
+                return n;
+        }
+        return DEFAULT_ITERATIONS;
+    }
+
+    /**
+     * Envelopes are plain hex, the old format is iv:ciphertext
+     */
+    private static boolean isEnvelope(String saved) {
+        return saved.indexOf(':') == -1;
+    }
+
+    private static boolean isNumeric(char[] password) {
+        if (password.length == 0)
+            return false;
+        for (char c : password) {
+            if (c < '0' || c > '9')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * What is known about the saved password, reused for as long as the
+     * stored PASSWORD and PASSWORD_HASH stay the same, so that checking it
+     * does not decrypt it every time. The password itself is not kept,
+     * it is decrypted again whenever it is needed.
+     */
+    private static class Credentials {
+        final String saved;
+        final String hash;
+        final boolean isSaved;
+        final boolean isPIN;
+
+        Credentials(String saved, String hash,
+                    boolean isSaved, boolean isPIN) {
+            this.saved = saved;
+            this.hash = hash;
+            this.isSaved = isSaved;
+            this.isPIN = isPIN;
+        }
+    }
+
+    private final static Credentials NO_CREDENTIALS =
+            new Credentials(null, null, false, false);
+
+    /**
+     * @return the kind recorded in a verified envelope
+     */
+    private static byte kindOf(String envelope) {
+        byte[] in = BUFFERS.get().envelope(1);
+        return Base16.decode(envelope, 2, 2, in, 0) == 1 ?
+                in[0] : KIND_PASSWORD;
+    }
+
+    /**
+     * Verify and decrypt an envelope, the MAC is checked before anything
+     * is decrypted. The caller wipes the returned password. Failure is
+     * only reported through the result, the caller logs it, so that this
+     * does not depend on the platform.
+     *
+     * @return null if it is not valid or has been tampered with
+     */
+    private static char[] open(String envelope) {
+        Buffers buffers = BUFFERS.get();
+        byte[] in = buffers.envelope(envelope.length() / 2);
+        int end = Base16.decode(envelope, 0, envelope.length(), in, 0);
+        int iterations = iterationsOf(in, end);
+        int offset = (in[0] == ENVELOPE_V2 ?
+                V2_HEADER_LENGTH : HEADER_LENGTH) + IV_LENGTH;
+        int length = end - MAC_LENGTH;
+        if (iterations == 0 || length <= offset)
+            return null;
+        byte[] plain = buffers.plain(length - offset);
+        int n = 0;
+        try {
+            Keys keys = keys(iterations);
+            Mac mac = MAC.get();
+            mac.init(keys.mac);
+            mac.update(in, 0, length);
+            if (!verify(mac.doFinal(), in, length))
+                return null;
+            Cipher c = CIPHER.get();
+            c.init(Cipher.DECRYPT_MODE, keys.cipher,
+                    new IvParameterSpec(in, offset - IV_LENGTH, IV_LENGTH));
+            n = c.doFinal(in, offset, length - offset, plain, 0);
+            return buffers.decode(n);
+        } catch (GeneralSecurityException e) {
+            return null;
+        } finally {
+            Arrays.fill(plain, 0, n, (byte) 0);
+        }
+    }
+
+    /**
+     * Compare in constant time
+     */
+    private static boolean verify(byte[] expected, byte[] in, int offset) {
+        int diff = 0;
+        for (int i = 0; i < MAC_LENGTH; i++) {
+            diff |= expected[i] ^ in[offset + i];
+        }
+        return diff == 0;
+    }
+
+    /**
+     * A password in the old format is saved if it matches its hash
+     */
+    private static Credentials legacy(String saved, String hash) {
+        String decrypted = decrypt(saved);
+        if (decrypted == null)
+            return new Credentials(saved, hash, false, false);
+        return new Credentials(saved, hash,
+                hash != null && hmac(decrypted).equals(hash),
+                isNumeric(decrypted.toCharArray()));
+    }
+
+    /**
+     * Store a password in the old format again as an envelope, if it is
+     * verified by its hash. Derives keys and writes settings, so it is
+     * only done from warmUp().
+     */
+    @VisibleForTesting
+    static void upgrade(Settings s) {
         String saved = s.get(Settings.PASSWORD);
-        String hash = s.get(Settings.PASSWORD_HASH);
-        if (saved != null && hash != null) {
-            String pass = decrypt(saved);
-            isSaved = pass != null && hmac(pass).equals(hash);
+        if (saved == null || isEnvelope(saved) ||
+                !legacy(saved, s.get(Settings.PASSWORD_HASH)).isSaved)
+            return;
+        char[] password = decrypt(saved).toCharArray();
+        try {
+            s.edit()
+                    .set(Settings.PASSWORD, seal(password, iterations(s)))
+                    .remove(Settings.PASSWORD_HASH)
+                    .commit();
+        } finally {
+            Arrays.fill(password, '\0');
         }
-        return isSaved;
     }
 
-    public static String getPassword(Context c) {
-        Settings s = Settings.getInstance(c);
+    private static volatile Credentials credentials;
+
+    private static Credentials credentials(Settings s) {
         String saved = s.get(Settings.PASSWORD);
         String hash = s.get(Settings.PASSWORD_HASH);
-        if (saved != null && hash != null) {
-            String pass = decrypt(saved);
-            if (hmac(pass).equals(hash))
-                return pass;
+        Credentials cred = credentials;
+        if (cred == null || !Objects.equal(cred.saved, saved) ||
+                !Objects.equal(cred.hash, hash)) {
+            if (saved == null) {
+                cred = NO_CREDENTIALS;
+            } else if (isEnvelope(saved)) {
+                char[] password = open(saved);
+                cred = new Credentials(saved, hash, password != null,
+                        password != null && kindOf(saved) == KIND_PIN);
+                if (password == null)
+                    Log.e(TAG, "Saved password failed verification");
+                else
+                    Arrays.fill(password, '\0');
+            } else {
+                cred = legacy(saved, hash);
+            }
+            credentials = cred;
+        }
+        return cred;
+    }
+
+    /**
+     * @return true if entered is exactly password
+     */
+    static boolean matches(char[] password, CharSequence entered) {
+        if (password.length != entered.length())
+            return false;
+        int diff = 0;
+        for (int i = 0; i < password.length; i++) {
+            diff |= password[i] ^ entered.charAt(i);
+        }
+        return diff == 0;
+    }
+
+    /**
+     * Copy text into an array that can be wiped when no longer needed
+     */
+    static char[] toChars(CharSequence text) {
+        char[] chars = new char[text.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = text.charAt(i);
+        }
+        return chars;
+    }
+
+    public static boolean isPIN(Context c) {
+        return credentials(Settings.getInstance(c)).isPIN;
+    }
+
+    /**
+     * Decrypt the saved password, the caller wipes it
+     *
+     * @return null if there is none or it cannot be decrypted
+     */
+    private static char[] password(Settings s) {
+        String saved = credentials(s).saved;
+        if (saved == null)
+            return null;
+        if (isEnvelope(saved))
+            return open(saved);
+        String decrypted = decrypt(saved);
+        return decrypted == null ? null : decrypted.toCharArray();
+    }
+
+    public static boolean verifyPassword(Context c, CharSequence pass) {
+        // have to decrypt saved password: encrypted is different each time
+        char[] decrypted = password(Settings.getInstance(c));
+        if (decrypted == null)
+            return true;
+        try {
+            return matches(decrypted, pass);
+        } finally {
+            Arrays.fill(decrypted, '\0');
         }
-        return null;
+    }
+
+    public static boolean isPasswordSaved(Context c) {
+        return isPasswordSaved(Settings.getInstance(c));
+    }
+
+    @VisibleForTesting
+    static boolean isPasswordSaved(Settings s) {
+        return credentials(s).isSaved;
+    }
+
+    /**
+     * @return the saved password, null if there is none. The caller wipes
+     * it once used.
+     */
+    public static char[] getPassword(Context c) {
+        Settings s = Settings.getInstance(c);
+        return credentials(s).isSaved ? password(s) : null;
     }
 }
@@ -0,0 +1,108 @@
+package com.hanhuy.android.bluetooth.keyguard;
+
+import com.google.common.base.Strings;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * The trust rules compiled into a bitmask of effects per selected device
+ * and network. Names are kept sorted next to their masks, so looking up a
+ * scope is a binary search and evaluating the scopes present is a bitwise
+ * OR of their masks. A table is compiled once per configuration, moving
+ * connections and networks are evaluated against the same table.
+ */
+final class DecisionTable {
+    final static int CLEAR_LOCK = 1;
+    final static int DISABLE_KEYGUARD = 2;
+    final static int REQUIRE_UNLOCK = 4;
+
+    private final long scopesVersion;
+    private final Set<String> selectedDevices;
+    private final Set<String> selectedNetworks;
+    private final boolean trustDevices;
+    private final boolean trustNetworks;
+
+    private final String[] devices;
+    private final int[] deviceEffects;
+    private final String[] networks;
+    private final int[] networkEffects;
+
+    private DecisionTable(Settings s) {
+        // read before the rules, so that the table is never older than it
+        scopesVersion = s.scopesVersion();
+        selectedDevices = s.get(Settings.BLUETOOTH_DEVICES);
+        selectedNetworks = s.get(Settings.WIFI_NETWORKS);
+        trustDevices = s.getBoolean(Settings.BT_CLEAR_KEYGUARD);
+        trustNetworks = s.getBoolean(Settings.WIFI_CLEAR_KEYGUARD);
+
+        devices = names(trustDevices ? selectedDevices : null);
+        deviceEffects = new int[devices.length];
+        for (int i = 0; i < devices.length; i++) {
+            deviceEffects[i] = effects(s, Settings.device(devices[i]));
+        }
+        networks = names(trustNetworks ? selectedNetworks : null);
+        networkEffects = new int[networks.length];
+        for (int i = 0; i < networks.length; i++) {
+            networkEffects[i] = effects(s, Settings.network(networks[i]));
+        }
+    }
+
+    /**
+     * @return table if it is still current, else a newly compiled one
+     */
+    static DecisionTable compile(Settings s, DecisionTable table) {
+        return table != null && table.isCurrent(s) ?
+                table : new DecisionTable(s);
+    }
+
+    private boolean isCurrent(Settings s) {
+        return scopesVersion == s.scopesVersion() &&
+                selectedDevices == s.get(Settings.BLUETOOTH_DEVICES) &&
+                selectedNetworks == s.get(Settings.WIFI_NETWORKS) &&
+                trustDevices == s.getBoolean(Settings.BT_CLEAR_KEYGUARD) &&
+                trustNetworks == s.getBoolean(Settings.WIFI_CLEAR_KEYGUARD);
+    }
+
+    private static String[] names(Set<String> selected) {
+        if (selected == null)
+            return new String[0];
+        String[] names = selected.toArray(new String[selected.size()]);
+        Arrays.sort(names);
+        return names;
+    }
+
+    private static int effects(Settings s, Settings.Scope scope) {
+        return CLEAR_LOCK |
+                (s.getBoolean(scope.disableKeyguard) ? DISABLE_KEYGUARD : 0) |
+                (s.getBoolean(scope.requireUnlock) ? REQUIRE_UNLOCK : 0);
+    }
+
+    /**
+     * @return the effects of the connected devices that are selected
+     */
+    int devices(Set<String> connected) {
+        int effects = 0;
+        if (devices.length > 0) {
+            for (String addr : connected) {
+                int i = Arrays.binarySearch(devices, addr);
+                if (i >= 0)
+                    effects |= deviceEffects[i];
+            }
+        }
+        return effects;
+    }
+
+    /**
+     * @return the effects of ssid if it is selected, the SSID may or may
+     *         not be reported in quotes
+     */
+    int network(String ssid) {
+        if (ssid == null || networks.length == 0)
+            return 0;
+        int i = Arrays.binarySearch(networks, ssid);
+        if (i < 0 && !Strings.isNullOrEmpty(ssid) && ssid.charAt(0) != '"')
+            i = Arrays.binarySearch(networks, "\"" + ssid + "\"");
+        return i < 0 ? 0 : networkEffects[i];
+    }
+}
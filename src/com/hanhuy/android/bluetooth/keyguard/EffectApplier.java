@@ -0,0 +1,125 @@
+package com.hanhuy.android.bluetooth.keyguard;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.admin.DevicePolicyManager;
+import android.content.Context;
+import android.content.Intent;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Brings the system to the effects LockMediator decided on: whether
+ * KeyguardService runs, whether the password is cleared and the
+ * notification saying so. It remembers what it last applied and only
+ * makes the system calls needed to get from there to the new target, so
+ * evaluating to the state already in place costs no binder traffic.
+ */
+class EffectApplier {
+    private final static String TAG = "EffectApplier";
+    private final Context ctx;
+    private final Settings settings;
+    private final DevicePolicyManager dpm;
+    private final SystemStateCache system;
+    /**
+     * Whether KeyguardService was last started or stopped, null if unknown
+     */
+    private Boolean keyguardDisabled;
+
+    EffectApplier(Context c, Settings settings, SystemStateCache system) {
+        ctx = c;
+        this.settings = settings;
+        this.system = system;
+        dpm = (DevicePolicyManager) ctx.getSystemService(
+                Context.DEVICE_POLICY_SERVICE);
+    }
+
+    synchronized void setKeyguardDisabled(boolean disable) {
+        if (keyguardDisabled != null && keyguardDisabled == disable)
+            return;
+        Intent intent = new Intent(ctx, KeyguardService.class);
+        if (disable)
+            ctx.startService(intent);
+        else
+            ctx.stopService(intent);
+        keyguardDisabled = disable;
+        system.onKeyguardChanged();
+    }
+
+    /**
+     * KeyguardService reports here as it is created and destroyed, it may
+     * be stopped by the user or the system without going through us.
+     */
+    synchronized void onKeyguardServiceRunning(boolean running) {
+        keyguardDisabled = running;
+        system.onKeyguardChanged();
+    }
+
+    /**
+     * Clear or restore the password. What was last applied is kept in
+     * LOCK_DISABLED rather than here, since anything else that sets the
+     * password also resets it and it has to survive the process. It is
+     * only written once the password has been changed.
+     *
+     * @param t committed just before the password is changed, so that it
+     *          can mark the change as our own
+     */
+    synchronized void setLockDisabled(boolean disable,
+                                      Settings.Transaction t) {
+        if (settings.getBoolean(Settings.LOCK_DISABLED) == disable)
+            return;
+        Log.v(TAG, "disabling lock screen: " + disable);
+
+        boolean reset;
+        if (disable) {
+            t.commit();
+            reset = dpm.resetPassword("", 0);
+        } else {
+            char[] password = CryptoUtils.getPassword(ctx);
+            if (password == null) {
+                // never clear the lock for want of the password
+                Log.e(TAG, "Unable to read the password, lock not restored");
+                return;
+            }
+            t.commit();
+            try {
+                // the device policy API only takes a String
+                reset = dpm.resetPassword(new String(password), 0);
+            } finally {
+                Arrays.fill(password, '\0');
+            }
+        }
+        system.onKeyguardChanged();
+        if (!reset) {
+            Log.e(TAG, "Password rejected by device policy");
+            return;
+        }
+        settings.set(Settings.LOCK_DISABLED, disable);
+        notifyLockDisabled(disable);
+        ctx.sendBroadcast(new Intent(LockMediator.ACTION_STATE_CHANGED));
+    }
+
+    private void notifyLockDisabled(boolean disabled) {
+        if (!settings.getBoolean(Settings.SHOW_NOTIFICATIONS))
+            return;
+        PendingIntent pending = PendingIntent.getActivity(
+                ctx, 0, new Intent(ctx, MainActivity.class), 0);
+        String text = ctx.getString(disabled ?
+                R.string.lockscreen_disabled :
+                R.string.lockscreen_enabled);
+        Notification n = new NotificationCompat.Builder(ctx)
+                .setAutoCancel(true)
+                .setTicker(text)
+                .setSmallIcon(R.drawable.ic_lock)
+                .setContentIntent(pending)
+                .setContentTitle(ctx.getString(R.string.notif_title))
+                .setContentText(text)
+                .build();
+        NotificationManager nm = (NotificationManager) ctx.getSystemService(
+                Context.NOTIFICATION_SERVICE);
+        nm.notify(LockMediator.NOTIFICATION_TOGGLE, n);
+    }
+}
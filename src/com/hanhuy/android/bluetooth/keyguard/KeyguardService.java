@@ -47,6 +47,7 @@ public class KeyguardService extends Service {
                 KEYGUARD_SERVICE);
         kgml = kgm.newKeyguardLock(TAG);
         kgml.disableKeyguard();
+        LockMediator.getInstance(this).onKeyguardServiceRunning(true);
     }
 
     private final BroadcastReceiver receiver = new BroadcastReceiver() {
@@ -85,5 +86,6 @@ public class KeyguardService extends Service {
         unregisterReceiver(receiver);
         Log.v(TAG, "keyguard disabler destroyed");
         kgml.reenableKeyguard();
+        LockMediator.getInstance(this).onKeyguardServiceRunning(false);
     }
 }
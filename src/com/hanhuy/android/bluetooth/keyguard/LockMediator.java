@@ -1,28 +1,21 @@
 package com.hanhuy.android.bluetooth.keyguard;
 
-import android.app.KeyguardManager;
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.admin.DevicePolicyManager;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
-import android.content.Intent;
-import android.net.wifi.WifiInfo;
-import android.net.wifi.WifiManager;
-import android.os.PowerManager;
-import android.support.v4.app.NotificationCompat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
-import com.google.common.base.Predicate;
-import com.google.common.base.Strings;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Sets;
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
 
 import java.util.List;
-import java.util.Set;
-
-import static com.hanhuy.android.bluetooth.keyguard.Settings.device;
-import static com.hanhuy.android.bluetooth.keyguard.Settings.network;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class LockMediator {
     public final static int NOTIFICATION_RESET = 1;
@@ -30,12 +23,24 @@ public class LockMediator {
     public final static String ACTION_STATE_CHANGED =
             "com.hanhuy.android.bluetooth.keyguard.KGM_STATE_CHANGE";
     private final static String TAG = "LockMediator";
+    /**
+     * Triggers arriving this long (ms) after the first one are evaluated
+     * together with it
+     */
+    private final static long COALESCE_WINDOW = 250;
     private static LockMediator instance;
     private final Context ctx;
-    private final DevicePolicyManager dpm;
+    private final SystemStateCache system;
     private final Settings settings;
-    private final KeyguardManager kgm;
-    private final PowerManager pm;
+    private final TrustState trust;
+    private final EffectApplier effects;
+    private volatile StatusMemo statusMemo;
+    private final Handler worker;
+    private final Handler main = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final List<BroadcastReceiver.PendingResult> waiting =
+            Lists.newArrayList();
 
     public static class Status {
         public final boolean security;
@@ -53,157 +58,207 @@ public class LockMediator {
     private LockMediator(Context c) {
         ctx = c;
         settings = Settings.getInstance(ctx);
-        pm = (PowerManager) ctx.getSystemService(Context.POWER_SERVICE);
-        kgm = (KeyguardManager) ctx.getSystemService(Context.KEYGUARD_SERVICE);
-        dpm = (DevicePolicyManager) ctx.getSystemService(
-                Context.DEVICE_POLICY_SERVICE);
+        trust = new TrustState(settings);
+        system = SystemStateCache.getInstance(ctx);
+        effects = new EffectApplier(ctx, settings, system);
+        HandlerThread t = new HandlerThread(
+                TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        t.start();
+        worker = new Handler(t.getLooper());
+    }
+
+    /**
+     * Run task on the background thread evaluations run on
+     */
+    void post(Runnable task) {
+        worker.post(task);
     }
 
-    public static LockMediator getInstance(Context c) {
+    public static synchronized LockMediator getInstance(Context c) {
         if (instance == null)
             instance = new LockMediator(c.getApplicationContext());
         return instance;
     }
 
+    /**
+     * Schedule an evaluation of the lock state. Evaluations run one at a
+     * time on a background thread, and triggers that arrive while one is
+     * scheduled but not yet started are folded into it.
+     */
     public void notifyStateChanged() {
-        final boolean disabled = settings.get(Settings.LOCK_DISABLED);
+        if (scheduled.getAndSet(true)) {
+            coalesced.incrementAndGet();
+            return;
+        }
+        worker.postDelayed(evaluation, COALESCE_WINDOW);
+    }
+
+    /**
+     * notifyStateChanged() from a receiver, which is kept alive until the
+     * evaluation finishes where the platform allows it
+     */
+    public void notifyStateChanged(BroadcastReceiver receiver) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            synchronized (waiting) {
+                waiting.add(receiver.goAsync());
+            }
+        }
+        notifyStateChanged();
+    }
+
+    /**
+     * The number of triggers that did not cause an evaluation of their own
+     */
+    public long getCoalescedTriggers() {
+        return coalesced.get();
+    }
+
+    private final Runnable evaluation = new Runnable() {
+        @Override
+        public void run() {
+            // triggers from here on need another evaluation
+            scheduled.set(false);
+            List<BroadcastReceiver.PendingResult> results;
+            synchronized (waiting) {
+                results = Lists.newArrayList(waiting);
+                waiting.clear();
+            }
+            try {
+                evaluate();
+            } finally {
+                for (BroadcastReceiver.PendingResult result : results) {
+                    result.finish();
+                }
+            }
+        }
+    };
+
+    private void evaluate() {
+        final boolean disabled = settings.getBoolean(Settings.LOCK_DISABLED);
         final Status status = getLockMediatorStatus();
         final boolean shouldDisable = !status.security;
 
-        if (!dpm.isAdminActive(new ComponentName(ctx, AdminReceiver.class))) {
+        if (!system.isAdminActive()) {
             Log.v(TAG, "device administrator is not active");
             return;
         }
 
         if (status.keyguard) {
-            ctx.stopService(new Intent(ctx, KeyguardService.class));
-        } else {
-            if (!status.requireUnlock || disabled ||
-                    (pm.isScreenOn() && !kgm.inKeyguardRestrictedInputMode())) {
-                ctx.startService(new Intent(ctx, KeyguardService.class));
-            }
+            effects.setKeyguardDisabled(false);
+        } else if (!status.requireUnlock || disabled || isUnlocked()) {
+            effects.setKeyguardDisabled(true);
         }
 
         if (disabled != shouldDisable && CryptoUtils.isPasswordSaved(ctx)) {
-
-            if (status.requireUnlock && !disabled && (!pm.isScreenOn() ||
-                    kgm.inKeyguardRestrictedInputMode())) {
+            if (status.requireUnlock && !disabled && !isUnlocked()) {
                 Log.v(TAG, "Unlock is required before disabling");
                 return;
             }
-
-            Log.v(TAG, "disabling lock screen: " + !shouldDisable);
-            settings.set(Settings.LOCK_DISABLED, shouldDisable);
-            updatePasswordSetTime();
-
-            dpm.resetPassword(shouldDisable ? "" : CryptoUtils.getPassword(ctx), 0);
-
-            if (settings.get(Settings.SHOW_NOTIFICATIONS)) {
-                PendingIntent pending = PendingIntent.getActivity(
-                        ctx, 0, new Intent(ctx, MainActivity.class), 0);
-                String text = ctx.getString(shouldDisable ?
-                        R.string.lockscreen_disabled :
-                        R.string.lockscreen_enabled);
-                Notification n = new NotificationCompat.Builder(ctx)
-                        .setAutoCancel(true)
-                        .setTicker(text)
-                        .setSmallIcon(R.drawable.ic_lock)
-                        .setContentIntent(pending)
-                        .setContentTitle(ctx.getString(R.string.notif_title))
-                        .setContentText(text)
-                        .build();
-                NotificationManager nm =
-                        (NotificationManager) ctx.getSystemService(
-                                Context.NOTIFICATION_SERVICE);
-                nm.notify(LockMediator.NOTIFICATION_TOGGLE, n);
-            }
-            ctx.sendBroadcast(new Intent(ACTION_STATE_CHANGED));
+            effects.setLockDisabled(
+                    shouldDisable, updatePasswordSetTime(settings.edit()));
         }
     }
 
+    private boolean isUnlocked() {
+        return system.isScreenOn() && !system.isKeyguardLocked();
+    }
+
+    void onKeyguardServiceRunning(boolean running) {
+        effects.onKeyguardServiceRunning(running);
+    }
+
+    /**
+     * The status only depends on settings and the current network, so it
+     * is reused until either of them changes.
+     */
     public Status getLockMediatorStatus() {
-        boolean disableLock = false;
-        boolean disableKG = false;
-        boolean requireUnlock = false;
+        long version = settings.version();
+        String ssid = settings.getBoolean(Settings.WIFI_CLEAR_KEYGUARD) ?
+                system.getSSID() : null;
+        StatusMemo memo = statusMemo;
+        if (memo != null && memo.version == version &&
+                Objects.equal(memo.ssid, ssid))
+            return memo.status;
+        Status status = getLockMediatorStatus(ssid);
+        statusMemo = new StatusMemo(version, ssid, status);
+        return status;
+    }
 
-        if (!CryptoUtils.isPasswordSaved(ctx)) {
-            Log.v(TAG, "password and/or hmac not set [properly]");
-            return new Status(!disableLock, !disableKG, false);
-        }
+    public interface StatusCallback {
+        void onStatus(Status status);
+    }
 
-        if (settings.get(Settings.WIFI_CLEAR_KEYGUARD)) {
-            WifiManager wm = (WifiManager) ctx.getSystemService(
-                    Context.WIFI_SERVICE);
-            final WifiInfo current = wm.getConnectionInfo();
-            List<String> selectedAPs = settings.get(Settings.WIFI_NETWORKS);
-
-            if (current != null) {
-                String ssid = current.getSSID();
-                if (ssid != null) {
-                    Set<String> selected = Sets.newHashSet(selectedAPs);
-                    String altSSID = !Strings.isNullOrEmpty(ssid) &&
-                            ssid.charAt(0) != '"' ? "\"" + ssid + "\"" : null;
-                    boolean hasNetworks = selected.contains(ssid) ||
-                            (altSSID != null && selected.contains(altSSID));
-                    if (hasNetworks) {
-                        Log.v(TAG, String.format("Found networks: %s in %s",
-                                current.getSSID(), selectedAPs));
+    /**
+     * Like getLockMediatorStatus(), for the main thread: working out the
+     * status may decrypt the password, so it is done on the background
+     * thread and delivered to callback on the main thread.
+     */
+    public void getLockMediatorStatus(final StatusCallback callback) {
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                final Status status = getLockMediatorStatus();
+                main.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onStatus(status);
                     }
-                    disableKG |= settings.get(
-                            network(ssid, Settings.DISABLE_KEYGUARD)) ||
-                            (altSSID != null &&
-                                    settings.get(network(altSSID,
-                                            Settings.DISABLE_KEYGUARD)));
-                    requireUnlock |= settings.get(
-                            network(ssid, Settings.REQUIRE_UNLOCK)) ||
-                            (altSSID != null &&
-                                    settings.get(network(altSSID,
-                                            Settings.REQUIRE_UNLOCK)));
-                    disableLock |= hasNetworks;
-                }
+                });
             }
-        }
+        });
+    }
 
-        final boolean[] _disableKG = { false };
-        final boolean[] _requireUnlock = { false };
-        List<String> selectedDevices = settings.get(Settings.BLUETOOTH_DEVICES);
-        if (settings.get(Settings.BT_CLEAR_KEYGUARD) &&
-                selectedDevices.size() > 0) {
-            List<String> connectedDevices = settings.get(
-                    Settings.BLUETOOTH_CONNECTIONS);
-
-            final Set<String> selected = Sets.newHashSet(
-                    selectedDevices);
-            boolean hasDevices = Iterables.tryFind(connectedDevices,
-                    new Predicate<String>() {
-                        @Override
-                        public boolean apply(java.lang.String addr) {
-                            _disableKG[0] |= settings.get(
-                                    device(addr, Settings.DISABLE_KEYGUARD));
-                            _requireUnlock[0] |= settings.get(
-                                    device(addr, Settings.REQUIRE_UNLOCK));
-                            return selected.contains(addr);
-                        }
-                    }).isPresent();
-            if (hasDevices) {
-                Log.v(TAG, String.format( "Found devices: %s in %s",
-                        connectedDevices, selectedDevices));
+    /**
+     * Put the password back if it is cleared, then give up device admin.
+     * Done on the background thread, the password has to be decrypted.
+     */
+    public void removeAdmin(final ComponentName admin) {
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                // no more evaluations may clear the password from here on
+                system.setAdminActive(false);
+                effects.setLockDisabled(false, settings.edit());
+                DevicePolicyManager dpm = (DevicePolicyManager)
+                        ctx.getSystemService(Context.DEVICE_POLICY_SERVICE);
+                dpm.removeActiveAdmin(admin);
             }
-            disableKG |= _disableKG[0];
-            requireUnlock |= _requireUnlock[0];
-            disableLock |= hasDevices;
+        });
+    }
+
+    private static class StatusMemo {
+        final long version;
+        final String ssid;
+        final Status status;
+        StatusMemo(long version, String ssid, Status status) {
+            this.version = version;
+            this.ssid = ssid;
+            this.status = status;
+        }
+    }
+
+    private Status getLockMediatorStatus(String ssid) {
+        if (!CryptoUtils.isPasswordSaved(ctx)) {
+            Log.v(TAG, "password and/or hmac not set [properly]");
+            return new Status(true, true, false);
         }
-        return new Status(!disableLock, !disableKG, requireUnlock);
+        Status status = trust.evaluate(ssid);
+        Log.v(TAG, "Trusted " + trust);
+        return status;
     }
 
     public void updatePasswordSetTime() {
-        settings.set(Settings.LAST_STATE_CHANGE, System.currentTimeMillis());
+        updatePasswordSetTime(settings.edit()).commit();
+    }
+
+    public Settings.Transaction updatePasswordSetTime(Settings.Transaction t) {
+        return t.set(Settings.LAST_STATE_CHANGE, System.currentTimeMillis());
     }
 
     // there is a window of opportunity where a settings-changed password
     // reset will mess this up
     public boolean passwordSetRecently() {
         return System.currentTimeMillis() -
-                settings.get(Settings.LAST_STATE_CHANGE) < 20 * 10000;
+                settings.getLong(Settings.LAST_STATE_CHANGE) < 20 * 10000;
     }
 }
@@ -10,10 +10,11 @@ import android.widget.*;
 import java.util.Arrays;
 
 public class LockOptionsFragment extends DialogFragment {
-    private final String scope;
+    private final Settings.Scope scope;
     private final String name;
     private final BaseAdapter parentAdapter;
-    public LockOptionsFragment(String scope, String name, BaseAdapter adapter) {
+    public LockOptionsFragment(
+            Settings.Scope scope, String name, BaseAdapter adapter) {
         this.scope = scope;
         this.name = name;
         parentAdapter = adapter;
@@ -57,8 +58,15 @@ public class LockOptionsFragment extends DialogFragment {
         list.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> l, View v, int i, long id) {
-                settings.set(adapter.getItem(i).prefix(scope),
-                        list.isItemChecked(i));
+                Settings.Setting<Boolean> option = adapter.getItem(i);
+                boolean checked = list.isItemChecked(i);
+                // what the template gives is not stored again per scope
+                boolean inherited = settings.get(
+                        settings.templateOf(scope).get(option));
+                if (checked == inherited)
+                    settings.edit().remove(scope.get(option)).commit();
+                else
+                    settings.set(scope.get(option), checked);
                 parentAdapter.notifyDataSetChanged();
                 LockMediator.getInstance(getActivity()).notifyStateChanged();
             }
@@ -67,7 +75,7 @@ public class LockOptionsFragment extends DialogFragment {
         int len = adapter.getCount();
         for (int i = 0; i < len; i++) {
             Settings.Setting<Boolean> setting = adapter.getItem(i);
-            list.setItemChecked(i, settings.get(setting.prefix(scope)));
+            list.setItemChecked(i, settings.get(scope.get(setting)));
         }
         return v;
     }
@@ -4,7 +4,11 @@ import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.NotificationManager;
 import android.app.admin.DevicePolicyManager;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.content.*;
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
@@ -13,13 +17,18 @@ import android.support.v4.view.ViewPager;
 import android.support.v7.app.ActionBarActivity;
 import android.text.Editable;
 import android.text.TextWatcher;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.Toast;
+import com.google.common.collect.Sets;
 import org.acra.ACRA;
 
+import java.util.List;
+import java.util.Set;
+
 public class MainActivity extends ActionBarActivity {
     private final static int DIALOG_NO_PAIRED_DEVICES = 0;
     private Settings settings;
@@ -29,6 +38,7 @@ public class MainActivity extends ActionBarActivity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        CryptoUtils.warmUp(this);
         settings = Settings.getInstance(this);
         setContentView(R.layout.main);
 
@@ -36,6 +46,44 @@ public class MainActivity extends ActionBarActivity {
             ViewPager pager = (ViewPager) findViewById(R.id.pager);
             pager.setAdapter(new PagerAdapter());
         }
+        if (savedInstanceState == null)
+            pruneSettings();
+    }
+
+    /**
+     * Forget settings for devices and networks that have been unpaired or
+     * removed. Only done while the radio is on, otherwise the list of
+     * devices or networks is not complete.
+     */
+    private void pruneSettings() {
+        final WifiManager wm = (WifiManager) getSystemService(
+                Context.WIFI_SERVICE);
+        // asking the radios goes through the system, keep it off the UI
+        LockMediator.getInstance(this).post(new Runnable() {
+            @Override
+            public void run() {
+                Set<String> devices = null;
+                BluetoothAdapter bt = BluetoothAdapter.getDefaultAdapter();
+                if (bt != null && bt.isEnabled()) {
+                    devices = Sets.newHashSet();
+                    for (BluetoothDevice d : bt.getBondedDevices()) {
+                        devices.add(d.getAddress());
+                    }
+                }
+                Set<String> networks = null;
+                List<WifiConfiguration> configured = wm.isWifiEnabled() ?
+                        wm.getConfiguredNetworks() : null;
+                if (configured != null) {
+                    networks = Sets.newHashSet();
+                    for (WifiConfiguration w : configured) {
+                        networks.add(w.SSID);
+                    }
+                }
+                Settings.PruneResult r = settings.prune(devices, networks);
+                if (r.keys > 0)
+                    Log.v(TAG, "pruned scoped settings: " + r);
+            }
+        });
     }
 
     private class PagerAdapter extends FragmentPagerAdapter {
@@ -6,6 +6,8 @@ import android.content.Intent;
 
 public class NotifyStateChangeReceiver extends BroadcastReceiver {
     public void onReceive(Context context, Intent intent) {
-        LockMediator.getInstance(context).notifyStateChanged();
+        CryptoUtils.warmUp(context);
+        SystemStateCache.getInstance(context).onReceive(intent);
+        LockMediator.getInstance(context).notifyStateChanged(this);
     }
 }
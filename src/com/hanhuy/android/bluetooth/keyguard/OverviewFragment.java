@@ -18,6 +18,7 @@ import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
 
 import java.util.List;
+import java.util.Set;
 
 public class OverviewFragment extends Fragment {
     private CompoundButton toggle;
@@ -30,6 +31,10 @@ public class OverviewFragment extends Fragment {
     private View disabledWarning;
     private View passwordWarning;
     private TextView keyguardStatus;
+    // decrypting the password is slow, only check it again after a write
+    private long credentialsVersion = -1;
+    // null until CredentialStore has reported it
+    private CredentialStore.State passwordState;
 
     private final static int COLOR_WARNING = 0xffff0000;
     private final static int COLOR_OK      = 0xff00aa00;
@@ -62,14 +67,8 @@ public class OverviewFragment extends Fragment {
                         Intent addAdmin = new Intent(
                                 DevicePolicyManager.ACTION_ADD_DEVICE_ADMIN);
                         if (!b) {
-                            Context ctx = getActivity();
-                            if (settings.get(Settings.LOCK_DISABLED) &&
-                                    CryptoUtils.isPasswordSaved(ctx)) {
-                                dpm.resetPassword(
-                                        CryptoUtils.getPassword(ctx), 0);
-                                settings.set(Settings.LOCK_DISABLED, false);
-                            }
-                            dpm.removeActiveAdmin(cn);
+                            LockMediator.getInstance(getActivity())
+                                    .removeAdmin(cn);
                             disabledWarning.setVisibility(View.VISIBLE);
                             warning.setVisibility(View.GONE);
 
@@ -97,61 +96,96 @@ public class OverviewFragment extends Fragment {
     private BroadcastReceiver receiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            if (KeyguardService.ACTION_PONG.equals(intent.getAction())) {
-                keyguardStatus.setText(R.string.disabled);
-                keyguardStatus.setTextColor(COLOR_INFO);
-            } else
-                updateUI();
+            keyguardStatus.setText(R.string.disabled);
+            keyguardStatus.setTextColor(COLOR_INFO);
         }
     };
 
+    private Settings.OnChangeListener settingsListener =
+            new Settings.OnChangeListener() {
+                @Override
+                public void onSettingsChanged(Set<String> keys) {
+                    updateUI();
+                }
+            };
+
     @Override
     public void onResume() {
         super.onResume();
         updateUI();
         IntentFilter filter = new IntentFilter();
-        filter.addAction(LockMediator.ACTION_STATE_CHANGED);
         filter.addAction(KeyguardService.ACTION_PONG);
         getActivity().registerReceiver(receiver, filter);
+        settings.registerListener(Settings.LOCK_DISABLED, settingsListener);
+        settings.registerListener(Settings.PASSWORD, settingsListener);
     }
 
     @Override
     public void onPause() {
         super.onPause();
         getActivity().unregisterReceiver(receiver);
+        settings.unregisterListener(settingsListener);
     }
 
     private void updateUI() {
         LockMediator lm = LockMediator.getInstance(getActivity());
-        boolean isActive = dpm.isAdminActive(cn);
+        final boolean isActive = dpm.isAdminActive(cn);
         disabledWarning.setVisibility(isActive ? View.GONE : View.VISIBLE);
-        passwordWarning.setVisibility(
-                CryptoUtils.isPasswordSaved(getActivity()) ?
-                        View.GONE : View.VISIBLE);
+        long version = settings.version();
+        if (version != credentialsVersion) {
+            credentialsVersion = version;
+            CredentialStore.getInstance(getActivity()).getState(
+                    new CredentialStore.Callback<CredentialStore.State>() {
+                        @Override
+                        public void onResult(CredentialStore.State state) {
+                            passwordState = state;
+                            if (isAdded())
+                                updatePasswordStatus();
+                        }
+
+                        @Override
+                        public void onError(Exception e) {
+                            // shown as it was, try again on the next update
+                            credentialsVersion = -1;
+                        }
+                    });
+        }
+        updatePasswordStatus();
         warning.setVisibility(isActive && areOtherAdminsSet() ?
                 View.VISIBLE : View.GONE);
         toggle.setChecked(isActive);
 
-        if (!CryptoUtils.isPasswordSaved(getActivity())) {
+        lm.getLockMediatorStatus(new LockMediator.StatusCallback() {
+            @Override
+            public void onStatus(LockMediator.Status status) {
+                if (!isAdded())
+                    return;
+                boolean isSecure = status.security || !isActive;
+                lockscreenStatus.setText(isSecure ?
+                        R.string.enabled : R.string.bypassed);
+                lockscreenStatus.setTextColor(
+                        isSecure ? COLOR_OK : COLOR_INFO);
+            }
+        });
+
+        keyguardStatus.setText(R.string.enabled);
+        keyguardStatus.setTextColor(COLOR_OK);
+        getActivity().sendBroadcast(new Intent(KeyguardService.ACTION_PING));
+    }
+
+    private void updatePasswordStatus() {
+        if (passwordState == null)
+            return;
+        passwordWarning.setVisibility(
+                passwordState.isSaved ? View.GONE : View.VISIBLE);
+        if (!passwordState.isSaved) {
             pinPasswordStatus.setText(R.string.unset);
             pinPasswordStatus.setTextColor(COLOR_WARNING);
         } else {
-            boolean isPIN = CryptoUtils.isPIN(getActivity());
-            pinPasswordStatus.setText(isPIN ? R.string.pin : R.string.password);
+            pinPasswordStatus.setText(
+                    passwordState.isPIN ? R.string.pin : R.string.password);
             pinPasswordStatus.setTextColor(COLOR_OK);
-
         }
-        LockMediator.Status status = lm.getLockMediatorStatus();
-        boolean isSecure = status.security || !isActive;
-
-        lockscreenStatus.setText(isSecure ?
-                R.string.enabled : R.string.bypassed);
-        lockscreenStatus.setTextColor(
-                isSecure ? COLOR_OK : COLOR_INFO);
-
-        keyguardStatus.setText(R.string.enabled);
-        keyguardStatus.setTextColor(COLOR_OK);
-        getActivity().sendBroadcast(new Intent(KeyguardService.ACTION_PING));
     }
 
     private boolean areOtherAdminsSet() {
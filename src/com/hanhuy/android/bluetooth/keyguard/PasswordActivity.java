@@ -1,6 +1,5 @@
 package com.hanhuy.android.bluetooth.keyguard;
 
-import android.app.admin.DevicePolicyManager;
 import android.content.Context;
 import android.os.Build;
 import android.os.Bundle;
@@ -20,25 +19,89 @@ import android.widget.RadioGroup;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.Arrays;
+
 public class PasswordActivity extends ActionBarActivity {
     private final static String TAG = "PasswordActivity";
+    private final static String ARG_IS_PIN = "is_pin";
+    // fragments may only be added between onResumeFragments and onPause
+    private boolean resumed;
+    private boolean requested;
+
+    private static Bundle arguments(boolean isPIN) {
+        Bundle args = new Bundle();
+        args.putBoolean(ARG_IS_PIN, isPIN);
+        return args;
+    }
 
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        Fragment start = CryptoUtils.isPasswordSaved(this) ?
-                new Verify() : new New();
         // this is necessary because ActionBarActivity prevents
         // android.R.id.content from being used pre-3.0
         FrameLayout f = new FrameLayout(this);
         f.setId(R.id.content);
         setContentView(f);
-        getSupportFragmentManager().beginTransaction().replace(
-                R.id.content, start).commit();
+    }
+
+    @Override
+    protected void onResumeFragments() {
+        super.onResumeFragments();
+        resumed = true;
+        start();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        resumed = false;
+    }
+
+    /**
+     * Show the first step, unless a fragment was restored or is already
+     * being looked up. A result that arrives while this instance is not
+     * resumed is dropped, and looked up again when it resumes.
+     */
+    private void start() {
+        if (requested || getSupportFragmentManager()
+                .findFragmentById(R.id.content) != null)
+            return;
+        requested = true;
+        CredentialStore.getInstance(this).getState(
+                new CredentialStore.Callback<CredentialStore.State>() {
+            @Override
+            public void onResult(CredentialStore.State state) {
+                requested = false;
+                if (!resumed || isFinishing())
+                    return;
+                Fragment start = state.isSaved ?
+                        Verify.newInstance(state.isPIN) : new New();
+                getSupportFragmentManager().beginTransaction().replace(
+                        R.id.content, start).commit();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                requested = false;
+                if (!resumed || isFinishing())
+                    return;
+                Toast.makeText(PasswordActivity.this,
+                        R.string.password_unavailable,
+                        Toast.LENGTH_LONG).show();
+                finish();
+            }
+        });
     }
 
     public static class Verify extends Fragment {
+        static Verify newInstance(boolean isPIN) {
+            Verify f = new Verify();
+            f.setArguments(arguments(isPIN));
+            return f;
+        }
+
         @Override
         public View onCreateView(LayoutInflater inf, ViewGroup c, Bundle b) {
+            final boolean isPIN = getArguments().getBoolean(ARG_IS_PIN);
             final Handler handler = new Handler();
             View v = inf.inflate(R.layout.fragment_password, c, false);
             v.findViewById(R.id.cancel).setOnClickListener(
@@ -52,7 +115,6 @@ public class PasswordActivity extends ActionBarActivity {
             final TextView warning = (TextView) v.findViewById(R.id.warning);
             warning.setText(R.string.try_again);
             TextView info = (TextView) v.findViewById(R.id.password_info);
-            final boolean isPIN = CryptoUtils.isPIN(getActivity());
             v.findViewById(R.id.pin_password_selection).setVisibility(
                     View.INVISIBLE);
             info.setText(getString(R.string.verify_pin_password,
@@ -93,20 +155,44 @@ public class PasswordActivity extends ActionBarActivity {
             next.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View view) {
-                    String entered = field.getText().toString();
-                    if (!CryptoUtils.verifyPassword(getActivity(), entered)) {
-                        warning.setVisibility(View.VISIBLE);
-                        handler.removeCallbacks(warningHider);
-                        handler.postDelayed(warningHider, 5000);
-                        field.setText("");
-                    } else {
-                        warning.setVisibility(View.INVISIBLE);
-                        getActivity().getSupportFragmentManager()
-                                .beginTransaction()
-                                .replace(R.id.content, new New())
-                                .setTransition(FragmentTransaction.TRANSIT_FRAGMENT_OPEN)
-                                .commit();
-                    }
+                    next.setEnabled(false);
+                    CredentialStore.getInstance(getActivity()).verify(
+                            field.getText(),
+                            new CredentialStore.Callback<Boolean>() {
+                        @Override
+                        public void onResult(Boolean verified) {
+                            if (!isAdded())
+                                return;
+                            if (!isResumed()) {
+                                // can't move on now, let it be asked again
+                                next.setEnabled(field.getText().length() > 0);
+                                return;
+                            }
+                            if (!verified) {
+                                warning.setVisibility(View.VISIBLE);
+                                handler.removeCallbacks(warningHider);
+                                handler.postDelayed(warningHider, 5000);
+                                field.setText("");
+                            } else {
+                                warning.setVisibility(View.INVISIBLE);
+                                getFragmentManager().beginTransaction()
+                                        .replace(R.id.content, new New())
+                                        .setTransition(FragmentTransaction
+                                                .TRANSIT_FRAGMENT_OPEN)
+                                        .commit();
+                            }
+                        }
+
+                        @Override
+                        public void onError(Exception e) {
+                            if (!isAdded())
+                                return;
+                            Toast.makeText(getActivity(),
+                                    R.string.password_unavailable,
+                                    Toast.LENGTH_LONG).show();
+                            next.setEnabled(field.getText().length() > 0);
+                        }
+                    });
                 }
             });
             return v;
@@ -188,26 +274,55 @@ public class PasswordActivity extends ActionBarActivity {
 
         private void nextStep() {
             getActivity().getSupportFragmentManager().beginTransaction()
-                    .replace(R.id.content, new Confirm(
-                            isPIN, field.getText().toString()))
+                    .replace(R.id.content, Confirm.newInstance(
+                            isPIN, CryptoUtils.toChars(field.getText())))
                     .setTransition(
                             FragmentTransaction.TRANSIT_FRAGMENT_OPEN)
                     .commit();
         }
     }
 
+    /**
+     * The password to confirm is only kept in memory: the fragment is
+     * retained across configuration changes, and after the process has
+     * been killed the flow starts over.
+     */
     public static class Confirm extends Fragment {
-        private final boolean isPIN;
-        private final String password;
-        Confirm(boolean isPIN, String password) {
-            this.isPIN = isPIN;
-            this.password = password;
+        private char[] password;
+
+        static Confirm newInstance(boolean isPIN, char[] password) {
+            Confirm f = new Confirm();
+            f.setArguments(arguments(isPIN));
+            f.password = password;
+            return f;
+        }
+
+        @Override
+        public void onCreate(Bundle savedInstanceState) {
+            super.onCreate(savedInstanceState);
+            setRetainInstance(true);
+        }
+
+        @Override
+        public void onDestroy() {
+            super.onDestroy();
+            // save() works on its own copy
+            if (password != null)
+                Arrays.fill(password, '\0');
         }
 
         @Override
         public View onCreateView(LayoutInflater inf, ViewGroup c, Bundle b) {
+            if (password == null) {
+                getFragmentManager().beginTransaction()
+                        .replace(R.id.content, new New())
+                        .commit();
+                return null;
+            }
+            final boolean isPIN = getArguments().getBoolean(ARG_IS_PIN);
             View v = inf.inflate(R.layout.fragment_password, c, false);
-            v.findViewById(R.id.cancel).setOnClickListener(
+            final View cancel = v.findViewById(R.id.cancel);
+            cancel.setOnClickListener(
                     new View.OnClickListener() {
                         @Override
                         public void onClick(View view) {
@@ -257,29 +372,37 @@ public class PasswordActivity extends ActionBarActivity {
             next.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View view) {
-                    String entered = field.getText().toString();
-                    if (!password.equals(entered)) {
+                    if (!CryptoUtils.matches(password, field.getText())) {
                         warning.setVisibility(View.VISIBLE);
                         handler.removeCallbacks(warningHider);
                         handler.postDelayed(warningHider, 5000);
                         field.setText("");
                     } else {
-                        Settings s = Settings.getInstance(getActivity());
-                        s.set(Settings.PASSWORD, CryptoUtils.encrypt(password));
-                        s.set(Settings.PASSWORD_HASH,
-                                CryptoUtils.hmac(password));
-                        DevicePolicyManager dpm =
-                                (DevicePolicyManager) getActivity()
-                                        .getSystemService(
-                                                Context.DEVICE_POLICY_SERVICE);
-                        LockMediator kgm =
-                                LockMediator.getInstance(getActivity());
-                        kgm.updatePasswordSetTime();
-                        dpm.resetPassword(password, 0);
-                        kgm.notifyStateChanged();
-                        Toast.makeText(getActivity(), R.string.password_changed,
-                                Toast.LENGTH_SHORT).show();
-                        getActivity().finish();
+                        next.setEnabled(false);
+                        field.setEnabled(false);
+                        cancel.setEnabled(false);
+                        final Context ctx = getActivity();
+                        CredentialStore.getInstance(ctx).save(password,
+                                new CredentialStore.Callback<Void>() {
+                            @Override
+                            public void onResult(Void result) {
+                                Toast.makeText(ctx, R.string.password_changed,
+                                        Toast.LENGTH_SHORT).show();
+                                if (isAdded())
+                                    getActivity().finish();
+                            }
+
+                            @Override
+                            public void onError(Exception e) {
+                                Toast.makeText(ctx, R.string.password_not_set,
+                                        Toast.LENGTH_LONG).show();
+                                if (!isAdded())
+                                    return;
+                                field.setEnabled(true);
+                                cancel.setEnabled(true);
+                                next.setEnabled(field.getText().length() > 0);
+                            }
+                        });
                     }
                 }
             });
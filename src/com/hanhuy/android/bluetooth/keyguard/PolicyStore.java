@@ -0,0 +1,231 @@
+package com.hanhuy.android.bluetooth.keyguard;
+
+import android.util.Log;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+/**
+ * Lock policy flags for device and network scopes, kept in a memory-mapped
+ * file of fixed size records rather than as individual preference keys.
+ *
+ * Layout, big-endian:
+ * <pre>
+ * header: magic(4) version(2) reserved(2) count(4)
+ * record: flags(1) key length(1) reserved(2) key(92, utf-8)
+ * </pre>
+ * The low bits of flags are the values of the flags, the high bits
+ * record which of them have been set at all. Flags that were never set
+ * are inherited, see Settings.Template.
+ * Opening the store only scans the record keys to build an index, there
+ * is nothing to parse, and a change rewrites only its own record.
+ */
+class PolicyStore {
+    private final static String TAG = "PolicyStore";
+
+    final static int FLAG_REQUIRE_UNLOCK   = 1;
+    final static int FLAG_DISABLE_KEYGUARD = 1 << 1;
+
+    private final static int MAGIC = 0x414b4d50; // AKMP
+    private final static short VERSION = 2;
+    private final static int SET_SHIFT = 4;
+    private final static int VALUE_MASK = (1 << SET_SHIFT) - 1;
+    private final static int HEADER_SIZE = 12;
+    private final static int COUNT_OFFSET = 8;
+    final static int RECORD_SIZE = 96;
+    private final static int KEY_OFFSET = 4;
+    private final static int MAX_KEY_LENGTH = RECORD_SIZE - KEY_OFFSET;
+    private final static int INITIAL_CAPACITY = 16;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int count;
+    private final Map<String,Integer> index = Maps.newHashMap();
+
+    private PolicyStore(File f) throws IOException {
+        file = new RandomAccessFile(f, "rw");
+        channel = file.getChannel();
+        long length = file.length();
+        if (length < HEADER_SIZE) {
+            map(INITIAL_CAPACITY);
+            buffer.putInt(0, MAGIC);
+            buffer.putShort(4, VERSION);
+            writeCount(0);
+        } else {
+            map((int) ((length - HEADER_SIZE) / RECORD_SIZE));
+            short version = buffer.getShort(4);
+            if (buffer.getInt(0) != MAGIC || version > VERSION || version < 1)
+                throw new IOException("Not a policy store: " + f);
+            count = Math.min(buffer.getInt(COUNT_OFFSET), capacity);
+            for (int i = 0; i < count; i++) {
+                index.put(readKey(i), i);
+            }
+            if (version == 1)
+                upgrade();
+        }
+    }
+
+    /**
+     * Open the store at f, creating it if necessary
+     */
+    static PolicyStore open(File f) throws IOException {
+        return new PolicyStore(f);
+    }
+
+    /**
+     * @return the flags set for scope, 0 if none are
+     */
+    synchronized int get(String scope) {
+        return read(scope) & VALUE_MASK;
+    }
+
+    /**
+     * @return the flags that have been given a value for scope, true or
+     * false, 0 if none have
+     */
+    synchronized int explicit(String scope) {
+        return read(scope) >> SET_SHIFT;
+    }
+
+    /**
+     * Set or clear the flags in mask for scope
+     */
+    synchronized void set(String scope, int mask, boolean value) {
+        Integer i = index.get(scope);
+        if (i == null)
+            i = append(scope);
+        int offset = offset(i);
+        int flags = (buffer.get(offset) & 0xff) | (mask << SET_SHIFT);
+        buffer.put(offset, (byte) (value ? flags | mask : flags & ~mask));
+    }
+
+    /**
+     * Forget the flags in mask for scope, so that they are inherited
+     */
+    synchronized void unset(String scope, int mask) {
+        Integer i = index.get(scope);
+        if (i == null)
+            return;
+        int offset = offset(i);
+        int flags = buffer.get(offset) & 0xff;
+        buffer.put(offset, (byte) (flags & ~(mask | mask << SET_SHIFT)));
+    }
+
+    /**
+     * Replace the record for scope with flags as returned by entries()
+     */
+    synchronized void put(String scope, int flags) {
+        Integer i = index.get(scope);
+        if (i == null) {
+            if (flags == 0)
+                return;
+            i = append(scope);
+        }
+        buffer.put(offset(i), (byte) flags);
+    }
+
+    /**
+     * Flush outstanding changes to storage
+     */
+    synchronized void force() {
+        buffer.force();
+    }
+
+    /**
+     * @return all scopes with records and their flags, including which
+     * were set, 0 if none are
+     */
+    synchronized Map<String,Integer> entries() {
+        ImmutableMap.Builder<String,Integer> b = ImmutableMap.builder();
+        for (Map.Entry<String,Integer> e : index.entrySet()) {
+            b.put(e.getKey(), buffer.get(offset(e.getValue())) & 0xff);
+        }
+        return b.build();
+    }
+
+    synchronized void close() {
+        try {
+            buffer.force();
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close policy store", e);
+        }
+    }
+
+    private int read(String scope) {
+        Integer i = index.get(scope);
+        return i == null ? 0 : buffer.get(offset(i)) & 0xff;
+    }
+
+    /**
+     * Version 1 did not record whether flags were set, only their values.
+     * Flags that are true must have been set, the rest are inherited.
+     */
+    private void upgrade() {
+        for (int i = 0; i < count; i++) {
+            int offset = offset(i);
+            int flags = buffer.get(offset) & VALUE_MASK;
+            buffer.put(offset, (byte) (flags | flags << SET_SHIFT));
+        }
+        buffer.putShort(4, VERSION);
+        buffer.force();
+    }
+
+    private int append(String scope) {
+        byte[] key = scope.getBytes(Charsets.UTF_8);
+        if (key.length > MAX_KEY_LENGTH)
+            throw new IllegalArgumentException("Scope too long: " + scope);
+        if (count == capacity) {
+            try {
+                map(capacity * 2);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        int i = count;
+        int offset = offset(i);
+        buffer.put(offset, (byte) 0);
+        buffer.put(offset + 1, (byte) key.length);
+        buffer.position(offset + KEY_OFFSET);
+        buffer.put(key);
+        index.put(scope, i);
+        writeCount(count + 1);
+        return i;
+    }
+
+    private String readKey(int i) {
+        int offset = offset(i);
+        int length = Math.min(buffer.get(offset + 1) & 0xff, MAX_KEY_LENGTH);
+        byte[] key = new byte[length];
+        buffer.position(offset + KEY_OFFSET);
+        buffer.get(key);
+        return new String(key, Charsets.UTF_8);
+    }
+
+    private void writeCount(int c) {
+        count = c;
+        buffer.putInt(COUNT_OFFSET, c);
+    }
+
+    private void map(int records) throws IOException {
+        capacity = Math.max(records, INITIAL_CAPACITY);
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        if (file.length() < size)
+            file.setLength(size);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private static int offset(int i) {
+        return HEADER_SIZE + i * RECORD_SIZE;
+    }
+}
@@ -0,0 +1,53 @@
+package com.hanhuy.android.bluetooth.keyguard;
+
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+
+/**
+ * The icon shown next to a device or network for its lock options,
+ * remembered until that scope is written to again. Main thread only.
+ */
+class ScopeIcons {
+    private final Settings settings;
+    private final Map<Settings.Scope,Icon> icons = Maps.newHashMap();
+
+    private static class Icon {
+        final long version;
+        final int drawable;
+        Icon(long version, int drawable) {
+            this.version = version;
+            this.drawable = drawable;
+        }
+    }
+
+    ScopeIcons(Settings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * @return the drawable resource for scope, 0 if it has none
+     */
+    int get(Settings.Scope scope) {
+        long version = scope.version();
+        Icon icon = icons.get(scope);
+        if (icon == null || icon.version != version) {
+            icon = new Icon(version, drawableFor(scope));
+            icons.put(scope, icon);
+        }
+        return icon.drawable;
+    }
+
+    private int drawableFor(Settings.Scope scope) {
+        boolean disableKG = settings.getBoolean(scope.disableKeyguard);
+        boolean requireUnlock = settings.getBoolean(scope.requireUnlock);
+        if (disableKG && requireUnlock) {
+            return R.drawable.lock_and_keyguard;
+        } else if (disableKG) {
+            return R.drawable.ic_display;
+        } else if (requireUnlock) {
+            return R.drawable.ic_lock_inverse;
+        }
+        return 0;
+    }
+}
@@ -2,20 +2,43 @@ package com.hanhuy.android.bluetooth.keyguard;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 
-import java.lang.reflect.ParameterizedType;
-import java.lang.reflect.Type;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * TODO add a way to prune scoped-settings that are no longer used.
- * i.e. when a wifi configuration or bluetooth device is removed (unpaired)
+ * All reads are served from an immutable in-memory snapshot of the
+ * preferences, decoded to the setting's type when it is loaded. Writes go
+ * through to SharedPreferences and then atomically replace the snapshot.
+ * The per-scope REQUIRE_UNLOCK and DISABLE_KEYGUARD flags live in a
+ * PolicyStore instead. Global, device and network settings are stored
+ * separately, see SettingsShard.
+ *
+ * Scoped settings outlive their wifi configuration or bluetooth device,
+ * prune() removes them once it is gone (unpaired).
  */
 public class Settings {
     /**
@@ -36,22 +59,41 @@ public class Settings {
             new StringSetting("password_hash");
     public final static Setting<String> PASSWORD =
             new StringSetting("password");
-    public final static Setting<List<String>> BLUETOOTH_DEVICES =
-            new StringListSetting("bluetooth_devices");
-    public final static Setting<List<String>> WIFI_NETWORKS =
-            new StringListSetting("wifi_networks");
+    public final static Setting<Set<String>> BLUETOOTH_DEVICES =
+            new StringSetSetting("bluetooth_devices");
+    public final static Setting<Set<String>> WIFI_NETWORKS =
+            new StringSetSetting("wifi_networks");
     public final static Setting<Boolean> WIFI_CLEAR_KEYGUARD =
             new BooleanSetting("wifi_clear_keyguard");
     public final static Setting<Boolean> BT_CLEAR_KEYGUARD =
             new BooleanSetting("bt_clear_keyguard");
-    public final static Setting<List<String>> BLUETOOTH_CONNECTIONS =
-            new StringListSetting("connected_devices");
+    public final static Setting<Set<String>> BLUETOOTH_CONNECTIONS =
+            new StringSetSetting("connected_devices");
     public final static Setting<Long> LAST_STATE_CHANGE =
             new LongSetting("last_state_change", 0l);
+    /**
+     * PBKDF2 iterations for new passwords, 0 until calibrated
+     */
+    public final static Setting<Long> KDF_ITERATIONS =
+            new LongSetting("kdf_iterations", 0l);
     private static final String TAG = "Settings";
 
-    private final Gson gson = new Gson();
+    /**
+     * Global settings, decoded by their own codec when the snapshot is
+     * loaded. Keys not listed here (scoped settings) are kept as stored.
+     */
+    private final static Setting<?>[] GLOBAL_SETTINGS = {
+            SHOW_NOTIFICATIONS, LOCK_DISABLED, PASSWORD_HASH, PASSWORD,
+            BLUETOOTH_DEVICES, WIFI_NETWORKS, WIFI_CLEAR_KEYGUARD,
+            BT_CLEAR_KEYGUARD, BLUETOOTH_CONNECTIONS, LAST_STATE_CHANGE,
+            KDF_ITERATIONS
+    };
 
+    /**
+     * A setting carries its own codec: how it is written to a
+     * SharedPreferences.Editor and how the stored value is turned back
+     * into T.
+     */
     public abstract static class Setting<T> {
         public final String key;
         public final T defaultValue;
@@ -64,15 +106,47 @@ public class Settings {
         }
 
         public abstract Setting<T> prefix(String prefix);
+
+        /**
+         * The raw type of values of this setting
+         */
+        abstract Class<?> type();
+
+        /**
+         * Write value to the editor, null removes the setting
+         */
+        abstract void encode(SharedPreferences.Editor editor, T value);
+
+        /**
+         * Convert a stored value into T, returns null if it is unusable
+         */
+        abstract T decode(Object stored);
+
+        /**
+         * The form of value that is safe to keep in the snapshot
+         */
+        T immutable(T value) {
+            return value;
+        }
     }
 
     private static class LongSetting extends Setting<Long> {
-        public LongSetting(String key) { super(key, null); }
+        public LongSetting(String key) { super(key, 0l); }
         public LongSetting(String key, Long defaultValue) {
             super(key, defaultValue);
         }
         public LongSetting prefix(String prefix) {
-            return new LongSetting(prefix + "." + key);
+            return new LongSetting(prefix + "." + key, defaultValue);
+        }
+        Class<?> type() { return Long.class; }
+        void encode(SharedPreferences.Editor editor, Long value) {
+            if (value == null)
+                editor.remove(key);
+            else
+                editor.putLong(key, value);
+        }
+        Long decode(Object stored) {
+            return stored instanceof Long ? (Long) stored : null;
         }
     }
     private static class StringSetting extends Setting<String> {
@@ -80,6 +154,13 @@ public class Settings {
         public StringSetting prefix(String prefix) {
             return new StringSetting(prefix + "." + key);
         }
+        Class<?> type() { return String.class; }
+        void encode(SharedPreferences.Editor editor, String value) {
+            editor.putString(key, value);
+        }
+        String decode(Object stored) {
+            return stored instanceof String ? (String) stored : null;
+        }
     }
     private static class BooleanSetting extends Setting<Boolean> {
         public BooleanSetting(String key) { this(key, false); }
@@ -89,108 +170,914 @@ public class Settings {
         public BooleanSetting prefix(String prefix) {
             return new BooleanSetting(prefix + "." + key, defaultValue);
         }
+        Class<?> type() { return Boolean.class; }
+        void encode(SharedPreferences.Editor editor, Boolean value) {
+            if (value == null)
+                editor.remove(key);
+            else
+                editor.putBoolean(key, value);
+        }
+        Boolean decode(Object stored) {
+            return stored instanceof Boolean ? (Boolean) stored : null;
+        }
     }
 
-    private static class StringListSetting extends Setting<List<String>> {
+    /**
+     * Stored as a sequence of length-prefixed strings, "length:string",
+     * e.g. "4:home7:office2". Values written as a JSON list by earlier
+     * versions are still read.
+     */
+    private static class StringSetSetting extends Setting<Set<String>> {
+        private final static Gson gson = new Gson();
+        public StringSetSetting(String key) {
+            super(key, ImmutableSet.<String>of());
+        }
+        public StringSetSetting prefix(String prefix) {
+            return new StringSetSetting(prefix + "." + key);
+        }
+        Class<?> type() { return Set.class; }
+        void encode(SharedPreferences.Editor editor, Set<String> value) {
+            if (value == null) {
+                editor.remove(key);
+                return;
+            }
+            StringBuilder b = new StringBuilder();
+            for (String v : value) {
+                b.append(v.length()).append(':').append(v);
+            }
+            editor.putString(key, b.toString());
+        }
+        Set<String> decode(Object stored) {
+            if (!(stored instanceof String))
+                return null;
+            String s = (String) stored;
+            if (s.startsWith("[") || s.equals("null"))
+                return decodeJson(s);
+            ImmutableSet.Builder<String> b = ImmutableSet.builder();
+            int i = 0;
+            int length = s.length();
+            while (i < length) {
+                int colon = s.indexOf(':', i);
+                if (colon == -1)
+                    return badValue(s);
+                int n;
+                try {
+                    n = Integer.parseInt(s.substring(i, colon));
+                } catch (NumberFormatException e) {
+                    return badValue(s);
+                }
+                i = colon + 1 + n;
+                if (n < 0 || i > length)
+                    return badValue(s);
+                b.add(s.substring(colon + 1, i));
+            }
+            return b.build();
+        }
         @SuppressWarnings("unchecked")
-        public StringListSetting(String key) {
-            super(key, Collections.EMPTY_LIST);
+        private Set<String> decodeJson(String json) {
+            try {
+                List<String> strings = gson.fromJson(json, List.class);
+                return strings == null ? null : ImmutableSet.copyOf(strings);
+            } catch (JsonSyntaxException e) {
+                Log.e(TAG, "Bad json", e);
+                return null;
+            }
+        }
+        private Set<String> badValue(String s) {
+            Log.e(TAG, "Bad value for " + key + ": " + s);
+            return null;
         }
-        public StringListSetting prefix(String prefix) {
-            return new StringListSetting(prefix + "." + key);
+        Set<String> immutable(Set<String> value) {
+            return value == null ? null : ImmutableSet.copyOf(value);
         }
     }
 
+    /**
+     * A lock policy flag of a device, network or template, kept in the
+     * PolicyStore rather than in the preferences. Unless it has been set,
+     * its value is that of the same flag of the template named by
+     * template, or of fallback if template is null.
+     */
+    private static class FlagSetting extends BooleanSetting {
+        final String scope;
+        final Setting<Boolean> flag;
+        final int mask;
+        final Setting<String> template;
+        final FlagSetting fallback;
+        FlagSetting(String scope, Setting<Boolean> flag, int mask,
+                    Setting<String> template, FlagSetting fallback) {
+            super(scope + "." + flag.key, flag.defaultValue);
+            this.scope = scope;
+            this.flag = flag;
+            this.mask = mask;
+            this.template = template;
+            this.fallback = fallback;
+        }
+    }
+
+    private final static String DEVICE_PREFS = "device_scopes";
+    private final static String NETWORK_PREFS = "network_scopes";
+    private final static String DEVICE_POLICIES = "device_policies.bin";
+    private final static String NETWORK_POLICIES = "network_policies.bin";
+    private final static String LEGACY_POLICIES = "policies.bin";
+    private final static String TEMPLATE_POLICIES = "template_policies.bin";
+    private final static Setting<?>[] NO_CODECS = {};
+    /**
+     * Set once scoped settings have been moved out of the global shard
+     */
+    private final static Setting<Boolean> SCOPES_SHARDED =
+            new BooleanSetting("scopes_sharded");
+
     private static Settings instance;
-    private SharedPreferences prefs;
+    private final SettingsShard globalShard;
+    private final SettingsShard deviceShard;
+    private final SettingsShard networkShard;
+    private final File legacyPolicies;
+    private volatile boolean scopesSharded;
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicLong scopesVersion = new AtomicLong();
+    private final List<Registration> registrations =
+            new CopyOnWriteArrayList<Registration>();
+    private final Set<String> pendingChanges = Sets.newHashSet();
+    private Handler handler; // guarded by pendingChanges
 
-    private Settings(Context c) {
-         prefs = PreferenceManager.getDefaultSharedPreferences(c);
+    @VisibleForTesting
+    Settings(SettingsShard global, SettingsShard devices,
+             SettingsShard networks, File legacyPolicies) {
+        globalShard = global;
+        deviceShard = devices;
+        networkShard = networks;
+        this.legacyPolicies = legacyPolicies;
     }
 
     @VisibleForTesting
-    Settings() { }
+    Settings() {
+        this(null, null, null, null);
+    }
+
+    /**
+     * Settings kept in the given preferences, with policy files in dir
+     */
+    @VisibleForTesting
+    static Settings create(Supplier<SharedPreferences> global,
+                           Supplier<SharedPreferences> devices,
+                           Supplier<SharedPreferences> networks, File dir) {
+        return new Settings(
+                new SettingsShard(global, GLOBAL_SETTINGS,
+                        new File(dir, TEMPLATE_POLICIES)),
+                new SettingsShard(devices, NO_CODECS,
+                        new File(dir, DEVICE_POLICIES)),
+                new SettingsShard(networks, NO_CODECS,
+                        new File(dir, NETWORK_POLICIES)),
+                new File(dir, LEGACY_POLICIES));
+    }
+
+    private static Supplier<SharedPreferences> preferences(
+            final Context c, final String name) {
+        return new Supplier<SharedPreferences>() {
+            @Override
+            public SharedPreferences get() {
+                return c.getSharedPreferences(name, Context.MODE_PRIVATE);
+            }
+        };
+    }
 
     public static Settings getInstance(Context c) {
-        if (instance == null)
-            instance = new Settings(c.getApplicationContext());
+        if (instance == null) {
+            final Context ctx = c.getApplicationContext();
+            instance = create(new Supplier<SharedPreferences>() {
+                        @Override
+                        public SharedPreferences get() {
+                            return PreferenceManager
+                                    .getDefaultSharedPreferences(ctx);
+                        }
+                    }, preferences(ctx, DEVICE_PREFS),
+                    preferences(ctx, NETWORK_PREFS), ctx.getFilesDir());
+        }
         return instance;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Global settings, device scopes and network scopes are each kept in
+     * their own file, so that reading global state does not load every
+     * scope.
+     */
+    private SettingsShard shardOf(String key) {
+        if (key.startsWith(DEVICE_PREFIX))
+            return scoped(deviceShard);
+        if (key.startsWith(NETWORK_PREFIX))
+            return scoped(networkShard);
+        return globalShard;
+    }
+
+    private SettingsShard scoped(SettingsShard shard) {
+        if (!scopesSharded)
+            shardScopes();
+        return shard;
+    }
+
+    /**
+     * Scoped settings used to be kept in the default preferences, and
+     * their flags in a single policy store for all scopes. Move them into
+     * the device and network shards. Interrupted migrations are repeated
+     * and setting a flag twice is harmless.
+     */
+    private void shardScopes() {
+        synchronized (globalShard.writeLock) {
+            if (scopesSharded)
+                return;
+            Map<String,Object> global = globalShard.values();
+            if (global.containsKey(SCOPES_SHARDED.key)) {
+                scopesSharded = true;
+                return;
+            }
+            SharedPreferences.Editor editor = globalShard.prefs().edit();
+            SharedPreferences.Editor devices = deviceShard.prefs().edit();
+            SharedPreferences.Editor networks = networkShard.prefs().edit();
+            Map<String,Object> changes = Maps.newHashMap();
+            for (Map.Entry<String,Object> e : global.entrySet()) {
+                String key = e.getKey();
+                boolean isDevice = key.startsWith(DEVICE_PREFIX);
+                if (!isDevice && !key.startsWith(NETWORK_PREFIX))
+                    continue;
+                SettingsShard shard = isDevice ? deviceShard : networkShard;
+                if (key.endsWith("." + REQUIRE_UNLOCK.key)) {
+                    shard.policies().set(key.substring(0,
+                            key.length() - REQUIRE_UNLOCK.key.length() - 1),
+                            PolicyStore.FLAG_REQUIRE_UNLOCK,
+                            Boolean.TRUE.equals(e.getValue()));
+                } else if (key.endsWith("." + DISABLE_KEYGUARD.key)) {
+                    shard.policies().set(key.substring(0,
+                            key.length() - DISABLE_KEYGUARD.key.length() - 1),
+                            PolicyStore.FLAG_DISABLE_KEYGUARD,
+                            Boolean.TRUE.equals(e.getValue()));
+                } else {
+                    putRaw(isDevice ? devices : networks, key, e.getValue());
+                }
+                editor.remove(key);
+                changes.put(key, null);
+            }
+            if (legacyPolicies.exists()) {
+                try {
+                    PolicyStore legacy = PolicyStore.open(legacyPolicies);
+                    for (Map.Entry<String,Integer> e :
+                            legacy.entries().entrySet()) {
+                        String scope = e.getKey();
+                        SettingsShard shard = scope.startsWith(DEVICE_PREFIX) ?
+                                deviceShard : networkShard;
+                        shard.policies().put(scope, e.getValue());
+                    }
+                    legacy.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to read " + legacyPolicies, e);
+                }
+            }
+            deviceShard.policies().force();
+            networkShard.policies().force();
+            devices.commit();
+            networks.commit();
+            SCOPES_SHARDED.encode(editor, true);
+            changes.put(SCOPES_SHARDED.key, true);
+            editor.commit();
+            globalShard.publish(changes);
+            legacyPolicies.delete();
+            scopesSharded = true;
+        }
+    }
+
+    private static void putRaw(
+            SharedPreferences.Editor editor, String key, Object value) {
+        if (value instanceof Boolean)
+            editor.putBoolean(key, (Boolean) value);
+        else if (value instanceof Long)
+            editor.putLong(key, (Long) value);
+        else if (value instanceof Integer)
+            editor.putInt(key, (Integer) value);
+        else if (value instanceof String)
+            editor.putString(key, (String) value);
+        else
+            Log.w(TAG, "Dropping " + key + ", unsupported value: " + value);
+    }
+
     public <T> void set(Setting<T> setting, T value) {
-        SharedPreferences.Editor editor = prefs.edit();
-        Class<T> settingType = getTypeOf(setting);
-        if (settingType == String.class) {
-            editor.putString(setting.key, (String) value);
-        } else if (settingType == Boolean.class) {
-            editor.putBoolean(setting.key, (Boolean) value);
-        } else if (settingType == Long.class) {
-            editor.putLong(setting.key, (Long) value);
-        } else if (settingType == List.class) {
-            List<String> values = (List<String>) value;
-            String json = gson.toJson(values);
-            editor.putString(setting.key, json);
-        } else {
-            throw new RuntimeException("Unknown setting type");
-        }
-        editor.commit();
+        edit().set(setting, value).commit();
+    }
+
+    /**
+     * Start a group of writes that are persisted with a single editor per
+     * shard and become visible to readers of each shard all at once.
+     */
+    public Transaction edit() {
+        return new Transaction();
+    }
+
+    public class Transaction {
+        private final Map<SettingsShard,Edit> edits = Maps.newHashMap();
+
+        private Transaction() { }
+
+        public <T> Transaction set(Setting<T> setting, T value) {
+            SettingsShard shard = shardOf(setting.key);
+            Edit edit = editOf(shard);
+            if (setting instanceof FlagSetting) {
+                // null would unset the flag, see remove()
+                edit.flags.put((FlagSetting) setting,
+                        Boolean.TRUE.equals(value));
+            } else {
+                if (edit.editor == null)
+                    edit.editor = shard.prefs().edit();
+                setting.encode(edit.editor, value);
+                edit.changes.put(setting.key, setting.immutable(value));
+            }
+            return this;
+        }
+
+        /**
+         * Revert setting to its default, or for lock options, to the
+         * value given by the template
+         */
+        public Transaction remove(Setting<?> setting) {
+            SettingsShard shard = shardOf(setting.key);
+            Edit edit = editOf(shard);
+            if (setting instanceof FlagSetting) {
+                edit.flags.put((FlagSetting) setting, null);
+            } else {
+                if (edit.editor == null)
+                    edit.editor = shard.prefs().edit();
+                edit.editor.remove(setting.key);
+                edit.changes.put(setting.key, null);
+            }
+            return this;
+        }
+
+        private Edit editOf(SettingsShard shard) {
+            Edit edit = edits.get(shard);
+            if (edit == null) {
+                edit = new Edit();
+                edits.put(shard, edit);
+            }
+            return edit;
+        }
+
+        /**
+         * Write to storage synchronously, for state that must survive
+         * the process dying immediately afterwards.
+         */
+        public boolean commit() {
+            boolean r = true;
+            for (Map.Entry<SettingsShard,Edit> e : edits.entrySet()) {
+                r &= e.getValue().write(e.getKey(), true);
+            }
+            changed(changedKeys());
+            return r;
+        }
+
+        /**
+         * Write to storage in the background. Readers see the new values
+         * immediately. Falls back to commit() where apply() is unavailable.
+         */
+        public void apply() {
+            for (Map.Entry<SettingsShard,Edit> e : edits.entrySet()) {
+                e.getValue().write(e.getKey(), false);
+            }
+            changed(changedKeys());
+        }
+
+        private Set<String> changedKeys() {
+            Set<String> keys = Sets.newHashSet();
+            for (Edit edit : edits.values()) {
+                keys.addAll(edit.changes.keySet());
+                for (FlagSetting f : edit.flags.keySet()) {
+                    keys.add(f.key);
+                }
+            }
+            return keys;
+        }
+    }
+
+    private static class Edit {
+        SharedPreferences.Editor editor;
+        final Map<String,Object> changes = Maps.newHashMap();
+        final Map<FlagSetting,Boolean> flags = Maps.newHashMap();
+
+        boolean write(SettingsShard shard, boolean durable) {
+            synchronized (shard.writeLock) {
+                boolean r = true;
+                if (editor != null) {
+                    if (durable)
+                        r = editor.commit();
+                    else
+                        SettingsShard.apply(editor);
+                }
+                if (!flags.isEmpty()) {
+                    PolicyStore store = shard.policies();
+                    for (Map.Entry<FlagSetting,Boolean> e : flags.entrySet()) {
+                        FlagSetting f = e.getKey();
+                        if (e.getValue() == null)
+                            store.unset(f.scope, f.mask);
+                        else
+                            store.set(f.scope, f.mask, e.getValue());
+                    }
+                    if (durable)
+                        store.force();
+                }
+                shard.publish(changes);
+                return r;
+            }
+        }
+    }
+
+    /**
+     * Atomically replace the value of setting with the result of applying
+     * f to it. f may be called more than once if another thread changes
+     * the snapshot at the same time, so it must not have side effects
+     * beyond its result. Storage is written once, with whatever value is
+     * current by then, and only if the value changed.
+     * @return the new value
+     */
+    public <T> T update(Setting<T> setting, Function<T,T> f) {
+        if (setting instanceof FlagSetting)
+            throw new IllegalArgumentException("Unsupported: " + setting);
+        SettingsShard shard = shardOf(setting.key);
+        for (;;) {
+            Map<String,Object> current = shard.values();
+            T value = valueOf(current, setting);
+            T updated = setting.immutable(f.apply(value));
+            if (Objects.equal(value, updated))
+                return value;
+            Map<String,Object> changes = Maps.newHashMap();
+            changes.put(setting.key, updated);
+            Map<String,Object> next = SettingsShard.merge(current, changes);
+            if (shard.compareAndSet(current, next)) {
+                synchronized (shard.writeLock) {
+                    SharedPreferences.Editor editor = shard.prefs().edit();
+                    setting.encode(editor, get(setting));
+                    SettingsShard.apply(editor);
+                }
+                changed(Collections.singleton(setting.key));
+                return updated;
+            }
+        }
+    }
+
+    /**
+     * Receives the keys of settings that changed, on the main thread.
+     * Writes made in quick succession, e.g. all of a Transaction, are
+     * delivered together in a single call.
+     */
+    public interface OnChangeListener {
+        void onSettingsChanged(Set<String> keys);
+    }
+
+    private static class Registration {
+        final String key;
+        final boolean isScope;
+        final OnChangeListener listener;
+        Registration(String key, boolean isScope, OnChangeListener l) {
+            this.key = key;
+            this.isScope = isScope;
+            listener = l;
+        }
+        boolean matches(String k) {
+            return isScope ?
+                    k.length() > key.length() && k.startsWith(key) &&
+                            k.charAt(key.length()) == '.' :
+                    k.equals(key);
+        }
+    }
+
+    /**
+     * Notify listener when setting changes
+     */
+    public void registerListener(Setting<?> setting, OnChangeListener l) {
+        registrations.add(new Registration(setting.key, false, l));
+    }
+
+    /**
+     * Notify listener when any setting of scope changes
+     */
+    public void registerListener(Scope scope, OnChangeListener l) {
+        registrations.add(new Registration(scope.prefix, true, l));
+    }
+
+    /**
+     * Remove every registration of listener
+     */
+    public void unregisterListener(OnChangeListener l) {
+        for (Registration r : registrations) {
+            if (r.listener == l)
+                registrations.remove(r);
+        }
+    }
+
+    /**
+     * The number of writes made so far. Anything derived from settings
+     * stays valid for as long as this does not move. It is incremented
+     * after the new values are visible, so a result computed after
+     * reading a version is never older than that version.
+     */
+    public long version() {
+        return version.get();
     }
 
+    /**
+     * The number of writes made so far to scoped settings and templates,
+     * it moves the same way as version()
+     */
+    public long scopesVersion() {
+        return scopesVersion.get();
+    }
+
+    /**
+     * Record that keys were written: bump the global version and that of
+     * each scope written to, then notify listeners.
+     */
+    private void changed(Collection<String> keys) {
+        if (keys.isEmpty())
+            return;
+        boolean scopes = false;
+        boolean templates = false;
+        for (String key : keys) {
+            Scope scope = scopeOf(key);
+            if (scope != null)
+                scope.version.incrementAndGet();
+            templates |= key.startsWith(TEMPLATE_PREFIX);
+            scopes |= scope != null;
+        }
+        if (scopes || templates)
+            scopesVersion.incrementAndGet();
+        version.incrementAndGet();
+        // any scope can inherit from a template
+        if (templates) {
+            for (Scope scope : Iterables.concat(
+                    DEVICE_SCOPES.values(), NETWORK_SCOPES.values()))
+                scope.version.incrementAndGet();
+        }
+        notifyChanged(keys);
+    }
+
+    /**
+     * Queue keys for delivery. Only the first change after a delivery
+     * posts to the main thread, later ones are picked up by that post.
+     * Settings removed by prune() are not reported, their scopes no longer
+     * exist.
+     */
+    private void notifyChanged(Collection<String> keys) {
+        if (registrations.isEmpty() || keys.isEmpty())
+            return;
+        synchronized (pendingChanges) {
+            boolean posted = !pendingChanges.isEmpty();
+            pendingChanges.addAll(keys);
+            if (!posted) {
+                if (handler == null)
+                    handler = new Handler(Looper.getMainLooper());
+                handler.post(dispatchChanges);
+            }
+        }
+    }
+
+    private final Runnable dispatchChanges = new Runnable() {
+        @Override
+        public void run() {
+            Set<String> keys;
+            synchronized (pendingChanges) {
+                keys = ImmutableSet.copyOf(pendingChanges);
+                pendingChanges.clear();
+            }
+            Map<OnChangeListener,Set<String>> changes =
+                    Maps.newLinkedHashMap();
+            for (Registration r : registrations) {
+                for (String key : keys) {
+                    if (r.matches(key)) {
+                        Set<String> changed = changes.get(r.listener);
+                        if (changed == null) {
+                            changed = Sets.newHashSet();
+                            changes.put(r.listener, changed);
+                        }
+                        changed.add(key);
+                    }
+                }
+            }
+            for (Map.Entry<OnChangeListener,Set<String>> e :
+                    changes.entrySet()) {
+                e.getKey().onSettingsChanged(
+                        Collections.unmodifiableSet(e.getValue()));
+            }
+        }
+    };
+
     @SuppressWarnings("unchecked")
     public <T> Class<T> getTypeOf(Setting<T> setting) {
-        Type sup = setting.getClass().getGenericSuperclass();
-        ParameterizedType type = (ParameterizedType) sup;
-        Type[] args = type.getActualTypeArguments();
-        if (args[0] instanceof ParameterizedType) {
-            ParameterizedType pt = (ParameterizedType) args[0];
-            return (Class<T>) pt.getRawType();
-        } else {
-            return (Class<T>) args[0];
-        }
+        return (Class<T>) setting.type();
     }
 
     @SuppressWarnings("unchecked")
     public <T> T get(Setting<T> setting) {
-        T defaultValue = setting.defaultValue;
-        Class<T> settingType = getTypeOf(setting);
-        if (settingType == String.class) {
-            return (T) prefs.getString(setting.key, (String) defaultValue);
-        } else if (settingType == Boolean.class) {
-            return (T) Boolean.valueOf(prefs.getBoolean(setting.key,
-                    defaultValue == null ? false : (Boolean) defaultValue));
-        } else if (settingType == Long.class) {
-            return (T) Long.valueOf(prefs.getLong(setting.key,
-                    defaultValue == null ? 0 : (Long) defaultValue));
-        } else if (settingType == List.class) {
-            String json = prefs.getString(setting.key, null);
-            if (json == null) {
-                return (T) Collections.EMPTY_LIST;
+        if (setting instanceof FlagSetting)
+            return (T) Boolean.valueOf(getFlag((FlagSetting) setting));
+        return valueOf(shardOf(setting.key).values(), setting);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T valueOf(Map<String,Object> values, Setting<T> s) {
+        Object value = values.get(s.key);
+        return value == null ? s.defaultValue : (T) value;
+    }
+
+    public boolean getBoolean(Setting<Boolean> setting) {
+        if (setting instanceof FlagSetting)
+            return getFlag((FlagSetting) setting);
+        Object value = shardOf(setting.key).values().get(setting.key);
+        return value == null ? setting.defaultValue : (Boolean) value;
+    }
+
+    public long getLong(Setting<Long> setting) {
+        Object value = shardOf(setting.key).values().get(setting.key);
+        return value == null ? setting.defaultValue : (Long) value;
+    }
+
+    /**
+     * A flag is resolved from its scope if set there, else from the scope's
+     * template, else from the default template.
+     */
+    private boolean getFlag(FlagSetting setting) {
+        FlagSetting f = setting;
+        while (f != null) {
+            PolicyStore store = shardOf(f.scope).policies();
+            if ((store.explicit(f.scope) & f.mask) != 0)
+                return (store.get(f.scope) & f.mask) != 0;
+            if (f.template != null) {
+                String name = get(f.template);
+                f = (FlagSetting) (name == null ?
+                        DEFAULT_TEMPLATE : template(name)).get(f.flag);
             } else {
-                try {
-                    List<String> strings = gson.fromJson(json, List.class);
-                    return (T) (strings == null ?
-                            Collections.EMPTY_LIST : strings);
-                } catch (JsonSyntaxException e) {
-                    Log.e(TAG, "Bad json", e);
-                    return (T) Collections.EMPTY_LIST;
+                f = f.fallback;
+            }
+        }
+        return setting.defaultValue;
+    }
+
+    /**
+     * The result of prune()
+     */
+    public static class PruneResult {
+        public final int keys;
+        public final long bytes;
+        private PruneResult(int keys, long bytes) {
+            this.keys = keys;
+            this.bytes = bytes;
+        }
+        private PruneResult plus(PruneResult r) {
+            return new PruneResult(keys + r.keys, bytes + r.bytes);
+        }
+        public String toString() {
+            return String.format("%d keys, %d bytes", keys, bytes);
+        }
+    }
+
+    /**
+     * Remove settings scoped to devices or networks that no longer exist,
+     * i.e. bluetooth devices that were unpaired or wifi configurations that
+     * were removed. Either set may be null when it is not currently known,
+     * e.g. the radio is off, and those scopes are left alone.
+     *
+     * Orphaned preferences are removed in a single commit per shard and
+     * the policy store is rewritten without orphaned or empty records.
+     * The byte count for preferences is an estimate from the sizes of keys
+     * and values.
+     */
+    public PruneResult prune(Set<String> devices, Set<String> networks) {
+        PruneResult r = new PruneResult(0, 0);
+        // interned Scopes are kept, holders may still reference them
+        if (devices != null)
+            r = r.plus(prune(scoped(deviceShard), devices, null));
+        if (networks != null)
+            r = r.plus(prune(scoped(networkShard), null, networks));
+        if (r.keys > 0) {
+            scopesVersion.incrementAndGet();
+            version.incrementAndGet();
+        }
+        return r;
+    }
+
+    private static PruneResult prune(SettingsShard shard,
+                                     Set<String> devices,
+                                     Set<String> networks) {
+        synchronized (shard.writeLock) {
+            int keys = 0;
+            long bytes = 0;
+            SharedPreferences.Editor editor = shard.prefs().edit();
+            Map<String,Object> removed = Maps.newHashMap();
+            for (Map.Entry<String,Object> e : shard.values().entrySet()) {
+                String key = e.getKey();
+                if (isOrphan(scopeName(key, false), devices, networks)) {
+                    editor.remove(key);
+                    removed.put(key, null);
+                    keys++;
+                    bytes += key.length() +
+                            String.valueOf(e.getValue()).length();
                 }
             }
-        } else {
-            throw new RuntimeException("Unknown setting type");
+            if (!removed.isEmpty()) {
+                editor.commit();
+                shard.publish(removed);
+            }
+
+            Map<String,Integer> entries =
+                    Maps.newHashMap(shard.policies().entries());
+            int records = entries.size();
+            Iterator<Map.Entry<String,Integer>> i =
+                    entries.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<String,Integer> e = i.next();
+                if (e.getValue() == 0 || isOrphan(
+                        scopeName(e.getKey(), true), devices, networks))
+                    i.remove();
+            }
+            if (entries.size() < records) {
+                bytes += shard.rewritePolicies(entries);
+                keys += records - entries.size();
+            }
+            return new PruneResult(keys, bytes);
+        }
+    }
+
+    /**
+     * @param record true for a policy record, which is keyed by the scope
+     *               prefix alone, rather than a setting in the scope
+     * @return the scope prefix key belongs to, e.g. network.home
+     */
+    private static String scopeName(String key, boolean record) {
+        // setting keys do not contain '.', but SSIDs can
+        int end = record ? key.length() : key.lastIndexOf('.');
+        return end == -1 ? key : key.substring(0, end);
+    }
+
+    private static boolean isOrphan(
+            String scope, Set<String> devices, Set<String> networks) {
+        if (devices != null && scope.startsWith(DEVICE_PREFIX))
+            return !devices.contains(
+                    scope.substring(DEVICE_PREFIX.length()));
+        if (networks != null && scope.startsWith(NETWORK_PREFIX))
+            return !networks.contains(
+                    scope.substring(NETWORK_PREFIX.length()));
+        return false;
+    }
+
+    /**
+     * A device or network that settings can be scoped to. Scopes are
+     * interned, so the keys of the per-scope flags are built once per
+     * address or SSID instead of on every lookup.
+     */
+    public static class Scope {
+        public final String prefix;
+        public final Setting<Boolean> requireUnlock;
+        public final Setting<Boolean> disableKeyguard;
+        /**
+         * The name of the Template this scope inherits lock options from,
+         * the default template if not set
+         */
+        public final Setting<String> template;
+        private final AtomicLong version = new AtomicLong();
+
+        private Scope(String prefix) {
+            this.prefix = prefix;
+            template = new StringSetting(prefix + ".template");
+            requireUnlock = new FlagSetting(prefix, REQUIRE_UNLOCK,
+                    PolicyStore.FLAG_REQUIRE_UNLOCK, template, null);
+            disableKeyguard = new FlagSetting(prefix, DISABLE_KEYGUARD,
+                    PolicyStore.FLAG_DISABLE_KEYGUARD, template, null);
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> Setting<T> get(Setting<T> setting) {
+            if (setting == REQUIRE_UNLOCK)
+                return (Setting<T>) requireUnlock;
+            if (setting == DISABLE_KEYGUARD)
+                return (Setting<T>) disableKeyguard;
+            return setting.prefix(prefix);
+        }
+
+        /**
+         * Like Settings.version(), but only counting writes to this scope
+         */
+        public long version() {
+            return version.get();
+        }
+
+        public String toString() {
+            return prefix;
+        }
+    }
+
+    /**
+     * Lock options shared by any number of scopes, so that scopes with the
+     * same policy need not store their own copy of it. A template's
+     * unset options come from DEFAULT_TEMPLATE.
+     */
+    public static class Template {
+        public final String name;
+        public final Setting<Boolean> requireUnlock;
+        public final Setting<Boolean> disableKeyguard;
+
+        private Template(String name, Template fallback) {
+            this.name = name;
+            String scope = TEMPLATE_PREFIX + name;
+            requireUnlock = new FlagSetting(scope, REQUIRE_UNLOCK,
+                    PolicyStore.FLAG_REQUIRE_UNLOCK, null, fallback == null ?
+                    null : (FlagSetting) fallback.requireUnlock);
+            disableKeyguard = new FlagSetting(scope, DISABLE_KEYGUARD,
+                    PolicyStore.FLAG_DISABLE_KEYGUARD, null, fallback == null ?
+                    null : (FlagSetting) fallback.disableKeyguard);
+        }
+
+        public Setting<Boolean> get(Setting<Boolean> setting) {
+            if (setting == REQUIRE_UNLOCK)
+                return requireUnlock;
+            if (setting == DISABLE_KEYGUARD)
+                return disableKeyguard;
+            throw new IllegalArgumentException("Not a lock option: " + setting);
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final static String TEMPLATE_PREFIX = "template.";
+    private final static ConcurrentMap<String,Template> TEMPLATES =
+            Maps.newConcurrentMap();
+    /**
+     * The lock options of scopes that have not set them or named a template
+     */
+    public final static Template DEFAULT_TEMPLATE =
+            new Template("default", null);
+
+    public static Template template(String name) {
+        if (DEFAULT_TEMPLATE.name.equals(name))
+            return DEFAULT_TEMPLATE;
+        Template template = TEMPLATES.get(name);
+        if (template == null) {
+            Template t = new Template(name, DEFAULT_TEMPLATE);
+            template = TEMPLATES.putIfAbsent(name, t);
+            if (template == null)
+                template = t;
         }
+        return template;
+    }
+
+    /**
+     * @return the template scope inherits its unset lock options from
+     */
+    public Template templateOf(Scope scope) {
+        String name = get(scope.template);
+        return name == null ? DEFAULT_TEMPLATE : template(name);
+    }
+
+    private final static String NETWORK = "network";
+    private final static String DEVICE = "device";
+    private final static String NETWORK_PREFIX = NETWORK + ".";
+    private final static String DEVICE_PREFIX = DEVICE + ".";
+    private final static ConcurrentMap<String,Scope> NETWORK_SCOPES =
+            Maps.newConcurrentMap();
+    private final static ConcurrentMap<String,Scope> DEVICE_SCOPES =
+            Maps.newConcurrentMap();
+
+    private static Scope intern(ConcurrentMap<String,Scope> scopes,
+                                String name, String prefix) {
+        Scope scope = scopes.get(name);
+        if (scope == null) {
+            Scope s = new Scope(prefix + "." + name);
+            scope = scopes.putIfAbsent(name, s);
+            if (scope == null)
+                scope = s;
+        }
+        return scope;
+    }
+
+    /**
+     * @return the scope key belongs to, null if it is not scoped
+     */
+    private static Scope scopeOf(String key) {
+        // setting keys do not contain '.', but SSIDs can
+        int end = key.lastIndexOf('.');
+        if (key.startsWith(DEVICE_PREFIX) && end > DEVICE_PREFIX.length())
+            return device(key.substring(DEVICE_PREFIX.length(), end));
+        if (key.startsWith(NETWORK_PREFIX) && end > NETWORK_PREFIX.length())
+            return network(key.substring(NETWORK_PREFIX.length(), end));
+        return null;
     }
 
-    public static String network(String net) {
-        return "network." + net;
+    public static Scope network(String net) {
+        return intern(NETWORK_SCOPES, net, NETWORK);
     }
-    public static String device(String dev) {
-        return "device." + dev;
+    public static Scope device(String dev) {
+        return intern(DEVICE_SCOPES, dev, DEVICE);
     }
     public static <T> Setting<T> network(String net, Setting<T> setting) {
-        return setting.prefix(network(net));
+        return network(net).get(setting);
     }
     public static <T> Setting<T> device(String dev, Setting<T> setting) {
-        return setting.prefix(device(dev));
+        return device(dev).get(setting);
     }
 }
@@ -0,0 +1,187 @@
+package com.hanhuy.android.bluetooth.keyguard;
+
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One of the files Settings is split across: a SharedPreferences, the
+ * immutable snapshot of its values and optionally the PolicyStore holding
+ * the flags of its scopes. Nothing is read from storage until first used.
+ */
+class SettingsShard {
+    private final static String TAG = "SettingsShard";
+
+    /**
+     * Held while writing to this shard's storage
+     */
+    final Object writeLock = new Object();
+
+    private final Supplier<SharedPreferences> source;
+    private final Settings.Setting<?>[] codecs;
+    private final File policyFile;
+    private volatile SharedPreferences prefs;
+    private final AtomicReference<Map<String,Object>> snapshot =
+            new AtomicReference<Map<String,Object>>();
+    private volatile PolicyStore policies;
+
+    /**
+     * @param codecs settings whose stored values are decoded at load time,
+     *               other values are kept as stored
+     * @param policyFile where flags for this shard's scopes are kept, null
+     *                   if it has none
+     */
+    SettingsShard(Supplier<SharedPreferences> prefs,
+                  Settings.Setting<?>[] codecs, File policyFile) {
+        source = prefs;
+        this.codecs = codecs;
+        this.policyFile = policyFile;
+    }
+
+    SharedPreferences prefs() {
+        SharedPreferences p = prefs;
+        if (p == null) {
+            synchronized (writeLock) {
+                if (prefs == null)
+                    prefs = source.get();
+                p = prefs;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * The current snapshot, loading it if necessary
+     */
+    Map<String,Object> values() {
+        Map<String,Object> values = snapshot.get();
+        if (values == null) {
+            snapshot.compareAndSet(null, load());
+            values = snapshot.get();
+        }
+        return values;
+    }
+
+    boolean compareAndSet(Map<String,Object> current,
+                          Map<String,Object> next) {
+        return snapshot.compareAndSet(current, next);
+    }
+
+    /**
+     * Swap in a snapshot with changes applied, a null value removes its key
+     */
+    void publish(Map<String,Object> changes) {
+        if (changes.isEmpty())
+            return;
+        Map<String,Object> current;
+        do {
+            current = values();
+        } while (!snapshot.compareAndSet(current, merge(current, changes)));
+    }
+
+    static Map<String,Object> merge(
+            Map<String,Object> current, Map<String,Object> changes) {
+        Map<String,Object> next = Maps.newHashMap(current);
+        for (Map.Entry<String,Object> e : changes.entrySet()) {
+            if (e.getValue() == null)
+                next.remove(e.getKey());
+            else
+                next.put(e.getKey(), e.getValue());
+        }
+        return ImmutableMap.copyOf(next);
+    }
+
+    /**
+     * Persist editor without blocking where the platform allows it
+     */
+    static void apply(SharedPreferences.Editor editor) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD)
+            editor.apply();
+        else
+            editor.commit();
+    }
+
+    PolicyStore policies() {
+        PolicyStore store = policies;
+        if (store == null) {
+            synchronized (writeLock) {
+                if (policies == null)
+                    policies = openPolicies();
+                store = policies;
+            }
+        }
+        return store;
+    }
+
+    // must hold writeLock
+    private PolicyStore openPolicies() {
+        try {
+            try {
+                return PolicyStore.open(policyFile);
+            } catch (IOException e) {
+                Log.e(TAG, "Discarding unreadable policy store", e);
+                policyFile.delete();
+                return PolicyStore.open(policyFile);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Replace the policy store with one containing only entries.
+     * Must hold writeLock.
+     * @return the number of bytes the store shrank by
+     */
+    long rewritePolicies(Map<String,Integer> entries) {
+        try {
+            long length = policyFile.length();
+            File tmp = new File(policyFile.getPath() + ".tmp");
+            tmp.delete();
+            PolicyStore store = PolicyStore.open(tmp);
+            for (Map.Entry<String,Integer> e : entries.entrySet()) {
+                store.put(e.getKey(), e.getValue());
+            }
+            store.close();
+            if (policies != null)
+                policies.close();
+            if (!tmp.renameTo(policyFile))
+                throw new IOException("Unable to replace " + policyFile);
+            policies = PolicyStore.open(policyFile);
+            return length - policyFile.length();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Read everything out of the preferences once, decoding settings
+     * with their codec.
+     */
+    private Map<String,Object> load() {
+        Map<String,Object> values = Maps.newHashMap();
+        for (Map.Entry<String,?> e : prefs().getAll().entrySet()) {
+            if (e.getValue() != null)
+                values.put(e.getKey(), e.getValue());
+        }
+        for (Settings.Setting<?> setting : codecs) {
+            Object stored = values.get(setting.key);
+            if (stored != null) {
+                Object decoded = setting.decode(stored);
+                if (decoded == null)
+                    values.remove(setting.key);
+                else
+                    values.put(setting.key, decoded);
+            }
+        }
+        return ImmutableMap.copyOf(values);
+    }
+}
@@ -0,0 +1,132 @@
+package com.hanhuy.android.bluetooth.keyguard;
+
+import android.app.KeyguardManager;
+import android.app.admin.DevicePolicyManager;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.PowerManager;
+
+/**
+ * System state that evaluations depend on, kept up to date from the
+ * broadcasts that announce its changes. The system service is only asked
+ * while a value is unknown: before the first query, or after a broadcast
+ * that says it changed without saying to what. Evaluating an unchanged
+ * system makes no calls into other processes.
+ */
+class SystemStateCache {
+    private static SystemStateCache instance;
+    private final Context ctx;
+    private final ComponentName admin;
+
+    // null while unknown
+    private Boolean screenOn;
+    private Boolean keyguardLocked;
+    private Boolean adminActive;
+    private boolean ssidKnown;
+    private String ssid;
+
+    private SystemStateCache(Context c) {
+        ctx = c;
+        admin = new ComponentName(ctx, AdminReceiver.class);
+        // screen broadcasts are only delivered to registered receivers
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        ctx.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                SystemStateCache.this.onReceive(intent);
+            }
+        }, filter);
+    }
+
+    static synchronized SystemStateCache getInstance(Context c) {
+        if (instance == null)
+            instance = new SystemStateCache(c.getApplicationContext());
+        return instance;
+    }
+
+    /**
+     * Update from a screen, USER_PRESENT or connectivity broadcast
+     */
+    synchronized void onReceive(Intent intent) {
+        String action = intent.getAction();
+        if (Intent.ACTION_SCREEN_ON.equals(action)) {
+            screenOn = true;
+            keyguardLocked = null;
+        } else if (Intent.ACTION_SCREEN_OFF.equals(action)) {
+            screenOn = false;
+            // locks now or after a timeout
+            keyguardLocked = null;
+        } else if (Intent.ACTION_USER_PRESENT.equals(action)) {
+            keyguardLocked = false;
+        } else if (ConnectivityManager.CONNECTIVITY_ACTION.equals(action)) {
+            boolean disconnected = intent.getBooleanExtra(
+                    ConnectivityManager.EXTRA_NO_CONNECTIVITY, false);
+            ssidKnown = disconnected;
+            ssid = null;
+        }
+    }
+
+    /**
+     * The keyguard was changed by us, see EffectApplier. No broadcast
+     * says so, so whether it is locked must be asked again.
+     */
+    synchronized void onKeyguardChanged() {
+        keyguardLocked = null;
+    }
+
+    /**
+     * Update from the device admin enabled and disabled callbacks
+     */
+    synchronized void setAdminActive(boolean active) {
+        adminActive = active;
+    }
+
+    /**
+     * The SSID of the current wifi connection, null if there is none
+     */
+    synchronized String getSSID() {
+        if (!ssidKnown) {
+            WifiManager wm = (WifiManager) ctx.getSystemService(
+                    Context.WIFI_SERVICE);
+            WifiInfo current = wm.getConnectionInfo();
+            ssid = current == null ? null : current.getSSID();
+            ssidKnown = true;
+        }
+        return ssid;
+    }
+
+    synchronized boolean isScreenOn() {
+        if (screenOn == null) {
+            PowerManager pm = (PowerManager) ctx.getSystemService(
+                    Context.POWER_SERVICE);
+            screenOn = pm.isScreenOn();
+        }
+        return screenOn;
+    }
+
+    synchronized boolean isKeyguardLocked() {
+        if (keyguardLocked == null) {
+            KeyguardManager kgm = (KeyguardManager) ctx.getSystemService(
+                    Context.KEYGUARD_SERVICE);
+            keyguardLocked = kgm.inKeyguardRestrictedInputMode();
+        }
+        return keyguardLocked;
+    }
+
+    synchronized boolean isAdminActive() {
+        if (adminActive == null) {
+            DevicePolicyManager dpm = (DevicePolicyManager)
+                    ctx.getSystemService(Context.DEVICE_POLICY_SERVICE);
+            adminActive = dpm.isAdminActive(admin);
+        }
+        return adminActive;
+    }
+}
@@ -0,0 +1,63 @@
+package com.hanhuy.android.bluetooth.keyguard;
+
+import com.google.common.base.Objects;
+
+import java.util.Set;
+
+/**
+ * The effects of the selected network and devices that are currently
+ * present. Rather than being rebuilt for every event, it is brought up
+ * to date from what moved since the last evaluation. The rules are only
+ * compiled again when the configuration changes. The devices are only
+ * looked up again when the connection set is replaced, and the network
+ * only when the SSID changes. Evaluating an unchanged state allocates
+ * nothing.
+ */
+class TrustState {
+    private final static LockMediator.Status[] STATUS =
+            new LockMediator.Status[8];
+    static {
+        for (int effects = 0; effects < STATUS.length; effects++) {
+            STATUS[effects] = new LockMediator.Status(
+                    (effects & DecisionTable.CLEAR_LOCK) == 0,
+                    (effects & DecisionTable.DISABLE_KEYGUARD) == 0,
+                    (effects & DecisionTable.REQUIRE_UNLOCK) != 0);
+        }
+    }
+
+    private final Settings settings;
+    private DecisionTable table;
+    private Set<String> connections;
+    private int deviceEffects;
+    private String ssid;
+    private int networkEffects;
+
+    TrustState(Settings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * @param ssid the current network, null if not connected or if
+     *             networks are not trusted
+     */
+    synchronized LockMediator.Status evaluate(String ssid) {
+        DecisionTable t = DecisionTable.compile(settings, table);
+        Set<String> connected = settings.get(Settings.BLUETOOTH_CONNECTIONS);
+        if (t != table || connected != connections) {
+            deviceEffects = t.devices(connected);
+            connections = connected;
+        }
+        if (t != table || !Objects.equal(ssid, this.ssid)) {
+            networkEffects = t.network(ssid);
+            this.ssid = ssid;
+        }
+        table = t;
+        return STATUS[deviceEffects | networkEffects];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "network: " + (networkEffects == 0 ? null : ssid) +
+                ", devices: " + deviceEffects;
+    }
+}
@@ -18,7 +18,6 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.*;
 import com.google.common.base.Function;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
@@ -36,6 +35,7 @@ public class WifiFragment extends Fragment {
     private View networksContainer;
     private View noNetworksContainer;
     private ArrayAdapter<WifiConfiguration> adapter;
+    private ScopeIcons icons;
 
     private final static String ACTION_WIFI_SETTINGS =
             "android.settings.WIFI_SETTINGS";
@@ -44,6 +44,7 @@ public class WifiFragment extends Fragment {
     public View onCreateView(LayoutInflater inflater, ViewGroup c, Bundle b) {
         View v = inflater.inflate(R.layout.fragment_wifi, c, false);
         settings = Settings.getInstance(getActivity());
+        icons = new ScopeIcons(settings);
         listView = (ListView) v.findViewById(R.id.paired_devices_list);
         disableKg = (CheckBox) v.findViewById(R.id.enable_clear_keyguard);
         disableKg.setOnCheckedChangeListener(
@@ -101,29 +102,22 @@ public class WifiFragment extends Fragment {
         for (int i = 0; i < length; i++) {
             if (ary.get(i)) {
                 networks.add((WifiConfiguration) listView.getItemAtPosition(i));
-            } else {
-                Settings.Setting<Boolean> disablekg = network(
-                        adapter.getItem(i).SSID, Settings.DISABLE_KEYGUARD);
-                boolean wasDisabled = settings.get(disablekg);
-                settings.set(disablekg, false);
-                if (wasDisabled)
-                    adapter.notifyDataSetChanged();
             }
         }
 
-        List<String> pref = Lists.transform(networks,
+        Set<String> pref = Sets.newHashSet(Lists.transform(networks,
                 new Function<WifiConfiguration,String>() {
                     @Override
                     public String apply(WifiConfiguration d) {
                         return d.SSID;
                     }
-                });
+                }));
 
-        List<String> oldPref = settings.get(Settings.WIFI_NETWORKS);
+        Set<String> oldPref = settings.get(Settings.WIFI_NETWORKS);
         Log.v(TAG, String.format("Size: %d, Old: [%s], new: [%s]",
                 networks.size(), oldPref, pref));
 
-        if (!Iterables.elementsEqual(pref, oldPref)) {
+        if (!pref.equals(oldPref)) {
             settings.set(Settings.WIFI_NETWORKS, pref);
         }
         LockMediator.getInstance(getActivity()).notifyStateChanged();
@@ -180,20 +174,8 @@ public class WifiFragment extends Fragment {
                                 ssid = ssid.substring(1, ssid.length() - 1);
 
                             TextView v = (TextView) convertView;
-                            int drawableLeft = 0;
-                            boolean disableKG = settings.get(
-                                    network(_ssid, Settings.DISABLE_KEYGUARD));
-                            boolean requireUnlock = settings.get(
-                                    network(_ssid, Settings.REQUIRE_UNLOCK));
-                            if (disableKG && requireUnlock) {
-                                drawableLeft = R.drawable.lock_and_keyguard;
-                            } else if (disableKG) {
-                                drawableLeft = R.drawable.ic_display;
-                            } else if (requireUnlock) {
-                                drawableLeft = R.drawable.ic_lock_inverse;
-                            }
                             v.setCompoundDrawablesWithIntrinsicBounds(
-                                    drawableLeft, 0, 0, 0);
+                                    icons.get(network(_ssid)), 0, 0, 0);
                             if (current != null &&
                                     _ssid.equals(current.getSSID())) {
                                 v.setTextColor(0xff00aa00);
@@ -203,8 +185,7 @@ public class WifiFragment extends Fragment {
                         }
                     };
             listView.setAdapter(adapter);
-            Set<String> selected = Sets.newHashSet(
-                    settings.get(Settings.WIFI_NETWORKS));
+            Set<String> selected = settings.get(Settings.WIFI_NETWORKS);
             for (int i = 0, j = networks.size(); i < j; i++) {
                 if (selected.contains(adapter.getItem(i).SSID)) {
                     listView.setItemChecked(i, true);
@@ -19,4 +19,14 @@ class CryptoTests extends FunSuite {
     expectResult(hmac1)(hmac2)
     expectResult("32d10c7b8cf96570ca04ce37f2a19d84240d3a89")(hmac1.toLowerCase)
   }
+
+  test("Envelope round trip") {
+    val value = "abcdefghijklmnopqrstuvwxyz"
+    val sealed = CryptoUtils.seal(value.toCharArray, 2000)
+    info(sealed)
+    expectResult(value)(CryptoUtils.unseal(sealed))
+    val tampered = sealed.substring(0, 40) +
+      (if (sealed.charAt(40) == '0') '1' else '0') + sealed.substring(41)
+    expectResult(null)(CryptoUtils.unseal(tampered))
+  }
 }
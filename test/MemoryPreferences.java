@@ -0,0 +1,170 @@
+package com.hanhuy.android.bluetooth.keyguard;
+
+import android.content.SharedPreferences;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * SharedPreferences held in a map, so that Settings can run on a plain JVM.
+ * Commits are atomic and apply() is the same as commit().
+ */
+class MemoryPreferences
+        implements SharedPreferences, Supplier<SharedPreferences> {
+    private final ConcurrentMap<String,Object> values =
+            Maps.newConcurrentMap();
+    private final CopyOnWriteArrayList<OnSharedPreferenceChangeListener>
+            listeners =
+            new CopyOnWriteArrayList<OnSharedPreferenceChangeListener>();
+
+    @Override
+    public SharedPreferences get() {
+        return this;
+    }
+
+    @Override
+    public Map<String,?> getAll() {
+        return ImmutableMap.copyOf(values);
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        return valueOf(key, defValue);
+    }
+
+    @Override
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        return valueOf(key, defValues);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return valueOf(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return valueOf(key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        return valueOf(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return valueOf(key, defValue);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new MemoryEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(
+            OnSharedPreferenceChangeListener l) {
+        listeners.addIfAbsent(l);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(
+            OnSharedPreferenceChangeListener l) {
+        listeners.remove(l);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T valueOf(String key, T defValue) {
+        Object value = values.get(key);
+        return value == null ? defValue : (T) value;
+    }
+
+    private class MemoryEditor implements Editor {
+        private final Map<String,Object> changes = Maps.newHashMap();
+        private boolean clear;
+
+        @Override
+        public Editor putString(String key, String value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            changes.put(key, values);
+            return this;
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            changes.put(key, null);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            synchronized (values) {
+                if (clear)
+                    values.clear();
+                for (Map.Entry<String,Object> e : changes.entrySet()) {
+                    if (e.getValue() == null)
+                        values.remove(e.getKey());
+                    else
+                        values.put(e.getKey(), e.getValue());
+                }
+            }
+            for (String key : changes.keySet()) {
+                for (OnSharedPreferenceChangeListener l : listeners) {
+                    l.onSharedPreferenceChanged(MemoryPreferences.this, key);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
+}
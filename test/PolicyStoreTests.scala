@@ -0,0 +1,42 @@
+package com.hanhuy.android.bluetooth.keyguard
+
+import java.io.File
+
+import org.scalatest.FunSuite
+
+class PolicyStoreTests extends FunSuite {
+  test("Flags survive reopening") {
+    val f = File.createTempFile("policies", ".bin")
+    f.delete()
+    val store = PolicyStore.open(f)
+    for (i <- 0 until 40)
+      store.set("device." + i, PolicyStore.FLAG_REQUIRE_UNLOCK, true)
+    store.set("network.\"home\"", PolicyStore.FLAG_DISABLE_KEYGUARD, true)
+    store.set("device.3", PolicyStore.FLAG_REQUIRE_UNLOCK, false)
+    store.close()
+
+    val reopened = PolicyStore.open(f)
+    expectResult(PolicyStore.FLAG_REQUIRE_UNLOCK)(reopened.get("device.5"))
+    expectResult(0)(reopened.get("device.3"))
+    expectResult(0)(reopened.get("device.unknown"))
+    expectResult(PolicyStore.FLAG_DISABLE_KEYGUARD)(
+      reopened.get("network.\"home\""))
+    expectResult(41)(reopened.entries.size)
+    reopened.close()
+    f.delete()
+  }
+
+  test("Only set flags are explicit") {
+    val f = File.createTempFile("policies", ".bin")
+    f.delete()
+    val store = PolicyStore.open(f)
+    store.set("device.1", PolicyStore.FLAG_DISABLE_KEYGUARD, false)
+    expectResult(0)(store.get("device.1"))
+    expectResult(PolicyStore.FLAG_DISABLE_KEYGUARD)(store.explicit("device.1"))
+    expectResult(0)(store.explicit("device.2"))
+    store.unset("device.1", PolicyStore.FLAG_DISABLE_KEYGUARD)
+    expectResult(0)(store.explicit("device.1"))
+    store.close()
+    f.delete()
+  }
+}
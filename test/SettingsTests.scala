@@ -1,13 +1,168 @@
 package com.hanhuy.android.bluetooth.keyguard
 
+import java.io.{File, RandomAccessFile}
+
+import com.google.common.io.Files
 import org.scalatest.FunSuite
 
 class SettingsTests extends FunSuite {
+  def delete(dir: File) {
+    dir.listFiles.foreach(_.delete())
+    dir.delete()
+  }
+
   test("Determine type") {
     val settings = new Settings()
     val cls = settings.getTypeOf(Settings.BLUETOOTH_CONNECTIONS)
-    expectResult(classOf[java.util.List[_]])(cls)
+    expectResult(classOf[java.util.Set[_]])(cls)
     val cls2 = settings.getTypeOf(Settings.BT_CLEAR_KEYGUARD)
     expectResult(classOf[java.lang.Boolean])(cls2)
   }
+
+  test("Decode stored set") {
+    val setting = Settings.BLUETOOTH_CONNECTIONS
+    val expected = new java.util.HashSet(
+      java.util.Arrays.asList("00:11:22:33:44:55", "", "a:1"))
+    expectResult(expected)(setting.decode("17:00:11:22:33:44:550:3:a:1"))
+    expectResult(expected)(
+      setting.decode("[\"00:11:22:33:44:55\", \"\", \"a:1\"]"))
+    expectResult(null)(setting.decode(java.lang.Boolean.TRUE))
+  }
+
+  test("Scopes are interned") {
+    val scope = Settings.device("00:11:22:33:44:55")
+    assert(scope eq Settings.device("00:11:22:33:44:55"))
+    assert(scope.disableKeyguard eq
+      Settings.device("00:11:22:33:44:55", Settings.DISABLE_KEYGUARD))
+    expectResult("device.00:11:22:33:44:55.require_unlock")(
+      scope.requireUnlock.key)
+    expectResult("network.home.require_unlock")(
+      Settings.network("home", Settings.REQUIRE_UNLOCK).key)
+  }
+
+  test("Scoped settings move out of the default preferences") {
+    val dir = Files.createTempDir()
+    val global = new MemoryPreferences
+    val devices = new MemoryPreferences
+    val networks = new MemoryPreferences
+    global.edit()
+      .putBoolean("device.AA.disable_keyguard", true)
+      .putBoolean("network.home.require_unlock", true)
+      .putString("device.AA.template", "car")
+      .putBoolean(Settings.SHOW_NOTIFICATIONS.key, false)
+      .commit()
+    // a version 1 store only recorded flag values
+    val legacy = new File(dir, "policies.bin")
+    val store = PolicyStore.open(legacy)
+    store.put("device.BB", PolicyStore.FLAG_REQUIRE_UNLOCK)
+    store.close()
+    val f = new RandomAccessFile(legacy, "rw")
+    f.seek(4)
+    f.writeShort(1)
+    f.close()
+
+    val settings = Settings.create(global, devices, networks, dir)
+    assert(settings.get(Settings.device("AA").disableKeyguard))
+    assert(settings.get(Settings.network("home").requireUnlock))
+    assert(settings.get(Settings.device("BB").requireUnlock))
+    assert(!settings.get(Settings.device("BB").disableKeyguard))
+    expectResult("car")(settings.get(Settings.device("AA").template))
+    expectResult("car")(devices.getString("device.AA.template", null))
+    assert(!global.contains("device.AA.template"))
+    assert(!global.contains("device.AA.disable_keyguard"))
+    assert(!global.contains("network.home.require_unlock"))
+    assert(!global.getBoolean(Settings.SHOW_NOTIFICATIONS.key, true))
+    assert(global.getBoolean("scopes_sharded", false))
+    assert(!legacy.exists)
+    delete(dir)
+  }
+
+  test("Prune removes orphaned scopes and empty records") {
+    val dir = Files.createTempDir()
+    val devices = new MemoryPreferences
+    val networks = new MemoryPreferences
+    val settings = Settings.create(
+      new MemoryPreferences, devices, networks, dir)
+    settings.edit()
+      .set(Settings.device("AA").template, "car")
+      .set(Settings.device("BB").template, "car")
+      .set(Settings.device("BB").requireUnlock, java.lang.Boolean.TRUE)
+      .set(Settings.device("CC").disableKeyguard, java.lang.Boolean.TRUE)
+      .set(Settings.network("home").template, "house")
+      .set(Settings.network("home.lan").template, "house")
+      .set(Settings.network("home.lan").requireUnlock, java.lang.Boolean.TRUE)
+      .commit()
+    // leaves an empty record behind
+    settings.edit().remove(Settings.device("CC").disableKeyguard).commit()
+
+    val r = settings.prune(
+      java.util.Collections.singleton("AA"),
+      java.util.Collections.singleton("home"))
+    expectResult(5)(r.keys)
+    expectResult(
+      java.util.Collections.singletonMap("device.AA.template", "car"))(
+      devices.getAll)
+    expectResult(
+      java.util.Collections.singletonMap("network.home.template", "house"))(
+      networks.getAll)
+    assert(!settings.get(Settings.device("BB").requireUnlock))
+    assert(!settings.get(Settings.network("home.lan").requireUnlock))
+    delete(dir)
+  }
+
+  test("Prune leaves scopes alone when they are not known") {
+    val dir = Files.createTempDir()
+    val devices = new MemoryPreferences
+    val networks = new MemoryPreferences
+    val settings = Settings.create(
+      new MemoryPreferences, devices, networks, dir)
+    settings.set(Settings.device("AA").requireUnlock, java.lang.Boolean.TRUE)
+    settings.set(Settings.network("home").template, "house")
+
+    val r = settings.prune(null, java.util.Collections.emptySet[String])
+    expectResult(1)(r.keys)
+    assert(settings.get(Settings.device("AA").requireUnlock))
+    assert(networks.getAll.isEmpty)
+    delete(dir)
+  }
+
+  test("Lock options resolve from scope, then template, then default") {
+    val dir = Files.createTempDir()
+    val settings = Settings.create(new MemoryPreferences,
+      new MemoryPreferences, new MemoryPreferences, dir)
+    val scope = Settings.device("AA")
+    val car = Settings.template("car")
+    val default = Settings.DEFAULT_TEMPLATE
+    assert(!settings.get(scope.requireUnlock))
+
+    settings.set(default.requireUnlock, java.lang.Boolean.TRUE)
+    settings.set(default.disableKeyguard, java.lang.Boolean.TRUE)
+    assert(settings.get(scope.requireUnlock))
+
+    settings.set(scope.template, "car")
+    settings.set(car.requireUnlock, java.lang.Boolean.FALSE)
+    assert(!settings.get(scope.requireUnlock))
+    // not set in the template either
+    assert(settings.get(scope.disableKeyguard))
+
+    settings.set(scope.requireUnlock, java.lang.Boolean.TRUE)
+    assert(settings.get(scope.requireUnlock))
+    delete(dir)
+  }
+
+  test("Removing a lock option inherits it again") {
+    val dir = Files.createTempDir()
+    val settings = Settings.create(new MemoryPreferences,
+      new MemoryPreferences, new MemoryPreferences, dir)
+    val scope = Settings.network("home")
+    settings.set(Settings.DEFAULT_TEMPLATE.disableKeyguard,
+      java.lang.Boolean.TRUE)
+    settings.set(scope.disableKeyguard, java.lang.Boolean.FALSE)
+    assert(!settings.get(scope.disableKeyguard))
+
+    settings.edit().remove(scope.disableKeyguard).commit()
+    assert(settings.get(scope.disableKeyguard))
+    expectResult(Settings.DEFAULT_TEMPLATE)(settings.templateOf(scope))
+    delete(dir)
+  }
 }